@@ -0,0 +1,267 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceDescription;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.platonos.eclipse.kotlin.builder.KotlinBuilder;
+
+/**
+ * Measures the latency of the Kotlin builder on a generated project, without a UI.
+ *
+ * The application creates a {@link SyntheticProject} and runs, for every iteration, a
+ * full build, a build without changes, a build after changing the body of a method
+ * and a build after changing the signature of a class. It prints the median wall time,
+ * the peak heap and the number of Kotlin markers per kind of build. The project is
+ * deleted afterwards, also when a build fails. The application is contributed by the
+ * EclipseKotlin.benchmark fragment, which is not part of the plug-in. Install the
+ * fragment with the plug-in and run it with:
+ *
+ * <pre>
+ * eclipse -nosplash -data /tmp/bench -application EclipseKotlin.buildBenchmark
+ *     -files 1000 -depth 3 -density 2 -errorRate 0 -iterations 5
+ *     -maxFullBuild 60000 -maxIncrementalBuild 5000 -results results.properties
+ * </pre>
+ *
+ * A build slower than its maximum, in milliseconds, makes the application exit with 1.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class BuildBenchmarkApplication implements IApplication {
+
+	private static final String MARKER_TYPE = "EclipseKotlin.kotlinProblem"; //$NON-NLS-1$
+
+	private static final String FULL = "full";
+	private static final String NO_CHANGE = "noChange";
+	private static final String BODY_EDIT = "bodyEdit";
+	private static final String SIGNATURE_EDIT = "signatureEdit";
+
+	private static final Integer EXIT_REGRESSION = Integer.valueOf(1);
+
+	private final Map<String, String> options = new HashMap<String, String>();
+
+	private final Map<String, List<Measurement>> measurements = new LinkedHashMap<String, List<Measurement>>();
+
+	private final IProgressMonitor monitor = new NullProgressMonitor();
+
+	@Override
+	public Object start(IApplicationContext context) throws Exception {
+		parseArguments((String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS));
+
+		IWorkspace workspace = ResourcesPlugin.getWorkspace();
+		IWorkspaceDescription description = workspace.getDescription();
+		description.setAutoBuilding(false);
+		workspace.setDescription(description);
+
+		SyntheticProject synthetic = new SyntheticProject("kotlin-build-benchmark",
+				getInt("files", 1000), getInt("depth", 3), getDouble("density", 2), getDouble("errorRate", 0), getInt("seed", 1));
+
+		try {
+			synthetic.create(monitor);
+			IProject project = synthetic.getProject();
+			Random random = new Random(getInt("seed", 1));
+			int iterations = getInt("iterations", 5);
+
+			for (int i = 0; i < iterations; i++) {
+				measure(FULL, project, IncrementalProjectBuilder.FULL_BUILD);
+				measure(NO_CHANGE, project, IncrementalProjectBuilder.INCREMENTAL_BUILD);
+
+				synthetic.editBody(random.nextInt(synthetic.getFileCount()), monitor);
+				measure(BODY_EDIT, project, IncrementalProjectBuilder.INCREMENTAL_BUILD);
+
+				synthetic.editSignature(random.nextInt(synthetic.getFileCount()), monitor);
+				measure(SIGNATURE_EDIT, project, IncrementalProjectBuilder.INCREMENTAL_BUILD);
+			}
+		} finally {
+			synthetic.delete(monitor);
+		}
+
+		Properties results = report();
+
+		if (options.containsKey("results")) {
+			writeResults(results, new File(options.get("results")));
+		}
+
+		boolean regression = exceeds(FULL, "maxFullBuild")
+				| exceeds(NO_CHANGE, "maxNoopBuild")
+				| exceeds(BODY_EDIT, "maxIncrementalBuild")
+				| exceeds(SIGNATURE_EDIT, "maxIncrementalBuild");
+
+		return regression ? EXIT_REGRESSION : IApplication.EXIT_OK;
+	}
+
+	@Override
+	public void stop() {
+	}
+
+	private void measure(String kind, IProject project, int buildKind) throws CoreException {
+		List<MemoryPoolMXBean> pools = getHeapPools();
+
+		for (MemoryPoolMXBean pool : pools) {
+			pool.resetPeakUsage();
+		}
+
+		long start = System.nanoTime();
+		project.build(buildKind, KotlinBuilder.BUILDER_ID, null, monitor);
+		long time = (System.nanoTime() - start) / 1000000L;
+
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : pools) {
+			peakHeap += pool.getPeakUsage().getUsed();
+		}
+
+		int markers = project.findMarkers(MARKER_TYPE, false, IResource.DEPTH_INFINITE).length;
+
+		List<Measurement> list = measurements.get(kind);
+		if (list == null) {
+			list = new ArrayList<Measurement>();
+			measurements.put(kind, list);
+		}
+		list.add(new Measurement(time, peakHeap, markers));
+	}
+
+	private Properties report() {
+		Properties results = new Properties();
+
+		for (Map.Entry<String, List<Measurement>> entry : measurements.entrySet()) {
+			String kind = entry.getKey();
+			long time = getMedianTime(kind);
+			long peakHeap = 0;
+
+			for (Measurement measurement : entry.getValue()) {
+				peakHeap = Math.max(peakHeap, measurement.peakHeap);
+			}
+
+			int markers = entry.getValue().get(entry.getValue().size() - 1).markers;
+
+			System.out.println(String.format("%-14s median %6d ms   peak heap %5d MB   markers %d",
+					kind, time, peakHeap / (1024 * 1024), markers));
+
+			results.setProperty(kind + ".time", String.valueOf(time));
+			results.setProperty(kind + ".peakHeap", String.valueOf(peakHeap));
+			results.setProperty(kind + ".markers", String.valueOf(markers));
+		}
+		return results;
+	}
+
+	private boolean exceeds(String kind, String option) {
+		if (!options.containsKey(option)) {
+			return false;
+		}
+
+		long max = Long.parseLong(options.get(option));
+		long time = getMedianTime(kind);
+
+		if (time > max) {
+			System.out.println(String.format("REGRESSION: %s build took %d ms, the maximum is %d ms", kind, time, max));
+			return true;
+		}
+		return false;
+	}
+
+	private long getMedianTime(String kind) {
+		List<Long> times = new ArrayList<Long>();
+
+		for (Measurement measurement : measurements.get(kind)) {
+			times.add(measurement.time);
+		}
+		Collections.sort(times);
+		return times.get(times.size() / 2);
+	}
+
+	private static List<MemoryPoolMXBean> getHeapPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pools.add(pool);
+			}
+		}
+		return pools;
+	}
+
+	private static void writeResults(Properties results, File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			results.store(out, "Kotlin build benchmark");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads options given as -name value, other arguments are ignored.
+	 */
+	private void parseArguments(String[] args) {
+		if (args == null) {
+			return;
+		}
+
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].startsWith("-")) {
+				options.put(args[i].substring(1), args[i + 1]);
+			}
+		}
+	}
+
+	private int getInt(String name, int defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	private double getDouble(String name, double defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	private static class Measurement {
+
+		private final long time;
+		private final long peakHeap;
+		private final int markers;
+
+		Measurement(long time, long peakHeap, int markers) {
+			this.time = time;
+			this.peakHeap = peakHeap;
+			this.markers = markers;
+		}
+	}
+}
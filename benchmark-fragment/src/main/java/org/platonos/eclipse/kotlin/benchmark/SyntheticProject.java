@@ -0,0 +1,219 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+import org.platonos.eclipse.kotlin.builder.KotlinNature;
+
+/**
+ * A generated Kotlin project in the workspace.
+ *
+ * Every file holds one class in a package of the given depth. A class calls the classes
+ * of other files, on average as many as the dependency density, and has a type error
+ * with the probability of the error rate. The same seed gives the same project.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class SyntheticProject {
+
+	private static final String JRE_CONTAINER = "org.eclipse.jdt.launching.JRE_CONTAINER"; //$NON-NLS-1$
+
+	private static final int PACKAGES_PER_LEVEL = 8;
+
+	private final String name;
+	private final int fileCount;
+	private final int packageDepth;
+
+	private final int[][] dependencies;
+	private final boolean[] errors;
+	private final int[] bodyEdits;
+	private final int[] addedMembers;
+
+	private IProject project;
+
+	public SyntheticProject(String name, int fileCount, int packageDepth, double dependencyDensity, double errorRate, long seed) {
+		this.name = name;
+		this.fileCount = fileCount;
+		this.packageDepth = packageDepth;
+		this.dependencies = new int[fileCount][];
+		this.errors = new boolean[fileCount];
+		this.bodyEdits = new int[fileCount];
+		this.addedMembers = new int[fileCount];
+
+		Random random = new Random(seed);
+
+		for (int i = 0; i < fileCount; i++) {
+			int count = (int) dependencyDensity;
+
+			if (random.nextDouble() < dependencyDensity - count) {
+				count++;
+			}
+
+			dependencies[i] = new int[fileCount > 1 ? count : 0];
+			for (int d = 0; d < dependencies[i].length; d++) {
+				int target = random.nextInt(fileCount - 1);
+				dependencies[i][d] = target >= i ? target + 1 : target;
+			}
+			errors[i] = random.nextDouble() < errorRate;
+		}
+	}
+
+	public IProject getProject() {
+		return project;
+	}
+
+	public int getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * Creates the project with the Java and Kotlin natures and writes all sources.
+	 * An existing project with the same name is deleted first.
+	 */
+	public void create(IProgressMonitor monitor) throws CoreException {
+		project = ResourcesPlugin.getWorkspace().getRoot().getProject(name);
+
+		if (project.exists()) {
+			project.delete(true, true, monitor);
+		}
+
+		project.create(monitor);
+		project.open(monitor);
+
+		IProjectDescription description = project.getDescription();
+		description.setNatureIds(new String[] { JavaCore.NATURE_ID, KotlinNature.NATURE_ID });
+		project.setDescription(description, monitor);
+
+		IFolder src = project.getFolder("src");
+		src.create(true, true, monitor);
+
+		IJavaProject javaProject = JavaCore.create(project);
+		javaProject.setRawClasspath(new IClasspathEntry[] {
+				JavaCore.newSourceEntry(src.getFullPath()),
+				JavaCore.newContainerEntry(new Path(JRE_CONTAINER))
+		}, project.getFullPath().append("bin"), monitor);
+
+		for (int i = 0; i < fileCount; i++) {
+			IFile file = getFile(i);
+			createFolders(file.getParent(), monitor);
+			file.create(toStream(getSource(i)), true, monitor);
+		}
+	}
+
+	/**
+	 * Deletes the project with its content, if it was created.
+	 */
+	public void delete(IProgressMonitor monitor) throws CoreException {
+		if (project != null && project.exists()) {
+			project.delete(true, true, monitor);
+		}
+	}
+
+	/**
+	 * Changes the body of a method of the class in a file, its ABI stays the same.
+	 */
+	public IFile editBody(int index, IProgressMonitor monitor) throws CoreException {
+		bodyEdits[index]++;
+		return write(index, monitor);
+	}
+
+	/**
+	 * Adds a public method to the class in a file, so the files depending on it are compiled too.
+	 */
+	public IFile editSignature(int index, IProgressMonitor monitor) throws CoreException {
+		addedMembers[index]++;
+		return write(index, monitor);
+	}
+
+	private IFile write(int index, IProgressMonitor monitor) throws CoreException {
+		IFile file = getFile(index);
+		file.setContents(toStream(getSource(index)), IResource.FORCE, monitor);
+		return file;
+	}
+
+	private IFile getFile(int index) {
+		return project.getFolder("src").getFolder(getPackageName(index).replace('.', '/')).getFile(getClassName(index) + ".kt");
+	}
+
+	private String getPackageName(int index) {
+		StringBuilder builder = new StringBuilder("bench");
+		int rest = index;
+
+		for (int level = 0; level < packageDepth; level++) {
+			builder.append(".p").append(rest % PACKAGES_PER_LEVEL);
+			rest /= PACKAGES_PER_LEVEL;
+		}
+		return builder.toString();
+	}
+
+	private static String getClassName(int index) {
+		return "File" + index;
+	}
+
+	private String getSource(int index) {
+		StringBuilder source = new StringBuilder();
+		source.append("package ").append(getPackageName(index)).append("\n\n");
+		source.append("class ").append(getClassName(index)).append(" {\n\n");
+		source.append("    fun value(): Int = ").append(index + bodyEdits[index]).append("\n\n");
+		source.append("    fun total(): Int = value()");
+
+		for (int dependency : dependencies[index]) {
+			source.append(" + ").append(getPackageName(dependency)).append('.').append(getClassName(dependency)).append("().value()");
+		}
+		source.append("\n");
+
+		for (int member = 1; member <= addedMembers[index]; member++) {
+			source.append("\n    fun added").append(member).append("(): Int = ").append(member).append("\n");
+		}
+
+		if (errors[index]) {
+			source.append("\n    fun broken(): Int = \"error\"\n");
+		}
+		source.append("}\n");
+		return source.toString();
+	}
+
+	private static void createFolders(IContainer container, IProgressMonitor monitor) throws CoreException {
+		if (!container.exists() && container instanceof IFolder) {
+			createFolders(container.getParent(), monitor);
+			((IFolder) container).create(true, true, monitor);
+		}
+	}
+
+	private static ByteArrayInputStream toStream(String source) {
+		try {
+			return new ByteArrayInputStream(source.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
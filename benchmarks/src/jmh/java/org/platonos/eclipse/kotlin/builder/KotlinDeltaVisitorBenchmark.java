@@ -0,0 +1,101 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link KotlinDeltaVisitor#visit} over the deltas of the files of a project: the check
+ * of every resource and, for removed sources, the removal from the source mapping and
+ * the dependency graph. Every tenth file is removed, every tenth added and the others
+ * are changed. The files themselves aren't deleted.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+@State(Scope.Benchmark)
+public class KotlinDeltaVisitorBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int fileCount;
+
+	private IResourceDelta[] deltas;
+
+	private SourceRootIndex index;
+
+	private SourceMappingStore sourceMapping;
+
+	private DependencyGraph dependencyGraph;
+
+	@Setup
+	public void setUp() {
+		IPath[] paths = WorkspaceStubs.sourcePaths(fileCount);
+		deltas = new IResourceDelta[fileCount];
+
+		for (int i = 0; i < fileCount; i++) {
+			int kind = i % 10 == 0 ? IResourceDelta.REMOVED : i % 10 == 1 ? IResourceDelta.ADDED : IResourceDelta.CHANGED;
+			deltas[i] = WorkspaceStubs.stub(IResourceDelta.class, "getResource", WorkspaceStubs.file(paths[i]), "getKind", kind);
+		}
+		index = new SourceRootIndex(WorkspaceStubs.classpath());
+	}
+
+	@Setup(Level.Invocation)
+	public void fillMapping() {
+		sourceMapping = new SourceMappingStore();
+		dependencyGraph = new DependencyGraph();
+
+		for (IResourceDelta delta : deltas) {
+			String source = delta.getResource().getLocation().toString();
+			sourceMapping.add(source, source.replace(".kt", ".class"));
+		}
+	}
+
+	@Benchmark
+	public KotlinDeltaVisitor visit() throws CoreException {
+		KotlinDeltaVisitor visitor = new KotlinDeltaVisitor() {
+			@Override
+			boolean isKotlinSource(IResource resource) {
+				return index.isKotlinSource(resource);
+			}
+
+			@Override
+			boolean isSkippedFolder(IResource resource) {
+				return false;
+			}
+
+			@Override
+			List<String> deleteClasses(IResource resource, Set<String> contributors) {
+				return removeSource(sourceMapping, dependencyGraph, resource.getLocation().toString(), contributors);
+			}
+		};
+
+		for (IResourceDelta delta : deltas) {
+			visitor.visit(delta);
+		}
+		return visitor;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The diagnostic path of {@link EclipseMessageCollector#report}: finding the file of
+ * the message location in the {@link FileLocationIndex} and collecting the problem in
+ * the {@link MarkerPublisher}. Every file gets
+ * a warning and every third file an error.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+@State(Scope.Benchmark)
+public class MarkerPublisherBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int fileCount;
+
+	private String[] locations;
+
+	private FileLocationIndex files;
+
+	@Setup
+	public void setUp() {
+		IPath[] paths = WorkspaceStubs.sourcePaths(fileCount);
+		List<IResource> resources = new ArrayList<IResource>(fileCount);
+		locations = new String[fileCount];
+
+		for (int i = 0; i < fileCount; i++) {
+			locations[i] = paths[i].toOSString();
+			resources.add(WorkspaceStubs.file(paths[i]));
+		}
+
+		files = new FileLocationIndex(resources, new FileLocationIndex.Resolver() {
+			@Override
+			public IFile resolve(String path) {
+				return null;
+			}
+		});
+	}
+
+	@Benchmark
+	public IFile findFile() {
+		IFile last = null;
+
+		for (String location : locations) {
+			last = files.find(location);
+		}
+		return last;
+	}
+
+	@Benchmark
+	public int report() {
+		MarkerPublisher publisher = new MarkerPublisher("EclipseKotlin.kotlinProblem");
+
+		for (int i = 0; i < locations.length; i++) {
+			IFile file = files.find(locations[i]);
+			publisher.addProblem(file, "Parameter 'x' is never used", i % 50, IMarker.SEVERITY_WARNING);
+
+			if (i % 3 == 0) {
+				publisher.addProblem(file, "Unresolved reference: foo", -1, IMarker.SEVERITY_ERROR);
+			}
+		}
+		return publisher.getProblemCount();
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IPath;
+import org.jetbrains.jet.cli.common.messages.OutputMessageUtil;
+import org.jetbrains.jet.cli.common.messages.OutputMessageUtil.Output;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The bookkeeping of {@link EclipseMessageCollector#report} for output messages,
+ * {@link KotlinBuilder#reportOutput} and {@link KotlinBuilder#deleteClasses}: parsing
+ * the output message and adding it to the {@link SourceMappingStore}, and removing the
+ * mapping and the dependencies of a removed source. Every source has two classes and
+ * shares the facade of its package with the other sources in it.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+@State(Scope.Benchmark)
+public class SourceMappingBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int fileCount;
+
+	private String[] sources;
+
+	private String[] outputMessages;
+
+	private String[][] outputs;
+
+	private SourceMappingStore sourceMapping;
+
+	private DependencyGraph dependencyGraph;
+
+	@Setup
+	public void setUp() {
+		IPath[] paths = WorkspaceStubs.sourcePaths(fileCount);
+		sources = new String[fileCount];
+		outputMessages = new String[fileCount * 3];
+		outputs = new String[fileCount][];
+
+		for (int i = 0; i < fileCount; i++) {
+			File source = new File(paths[i].toString());
+			sources[i] = source.getAbsolutePath().replace(File.separatorChar, '/');
+			String className = "/bench/bin/org/example/File" + i;
+			String facade = "/bench/bin/org/example/p" + (i % 7) + "/PFacade";
+			outputs[i] = new String[] { className + ".class", className + "$Inner.class", facade + ".class" };
+
+			for (int o = 0; o < outputs[i].length; o++) {
+				File output = new File(outputs[i][o]);
+				outputs[i][o] = output.getAbsolutePath().replace(File.separatorChar, '/');
+				outputMessages[3 * i + o] = OutputMessageUtil.formatOutputMessage(Collections.singletonList(source), output);
+			}
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void fillMapping() {
+		sourceMapping = new SourceMappingStore();
+		dependencyGraph = new DependencyGraph();
+
+		for (int i = 0; i < fileCount; i++) {
+			for (String output : outputs[i]) {
+				sourceMapping.add(sources[i], output);
+			}
+
+			Set<String> references = new HashSet<String>();
+			references.add("org/example/File" + ((i + 1) % fileCount));
+			references.add("org/example/File" + ((i * 7) % fileCount));
+			dependencyGraph.setReferences(sources[i], references);
+		}
+	}
+
+	@Benchmark
+	public SourceMappingStore reportOutput() {
+		SourceMappingStore mapping = new SourceMappingStore();
+
+		for (String message : outputMessages) {
+			Output output = OutputMessageUtil.parseOutputMessage(message);
+			mapping.add(output.sourceFiles, output.outputFile);
+		}
+		return mapping;
+	}
+
+	@Benchmark
+	public int deleteClasses() {
+		Set<String> contributors = new HashSet<String>();
+		int removed = 0;
+
+		for (String source : sources) {
+			removed += sourceMapping.removeSource(source, contributors).size();
+			dependencyGraph.removeSource(source);
+		}
+		return removed + contributors.size();
+	}
+}
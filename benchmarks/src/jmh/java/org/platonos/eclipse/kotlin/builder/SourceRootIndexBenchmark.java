@@ -0,0 +1,69 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.IPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The check of {@link SourceRootIndex#isKotlinSource}, done for every resource the delta
+ * and resource visitors see: the file extension and the lookup in the source folders.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+@State(Scope.Benchmark)
+public class SourceRootIndexBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int fileCount;
+
+	private IFile[] files;
+
+	private SourceRootIndex index;
+
+	@Setup
+	public void setUp() {
+		IPath[] paths = WorkspaceStubs.sourcePaths(fileCount);
+		files = new IFile[paths.length];
+
+		for (int i = 0; i < paths.length; i++) {
+			files[i] = WorkspaceStubs.file(paths[i]);
+		}
+		index = new SourceRootIndex(WorkspaceStubs.classpath());
+	}
+
+	@Benchmark
+	public int isKotlinSource() {
+		int sources = 0;
+
+		for (IFile file : files) {
+			if (index.isKotlinSource(file)) {
+				sources++;
+			}
+		}
+		return sources;
+	}
+
+	@Benchmark
+	public SourceRootIndex indexSourceFolders() {
+		return new SourceRootIndex(WorkspaceStubs.classpath());
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jdt.core.IClasspathEntry;
+
+/**
+ * In-memory stand-ins for workspace objects, answering only the calls the builder makes.
+ *
+ * A synthetic project has a src and a test folder, sources are spread over packages
+ * three levels deep. Every tenth file is in a generated package, which the src folder
+ * excludes, and every twentieth file is outside the source folders.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+final class WorkspaceStubs {
+
+	static final String PROJECT = "/bench";
+
+	private WorkspaceStubs() {
+	}
+
+	static IClasspathEntry[] classpath() {
+		return new IClasspathEntry[] {
+				sourceEntry(PROJECT + "/src", new IPath[] { new Path("**/generated/**") }),
+				sourceEntry(PROJECT + "/test", new IPath[0]),
+				stub(IClasspathEntry.class, "getEntryKind", IClasspathEntry.CPE_CONTAINER)
+		};
+	}
+
+	/**
+	 * Returns the workspace paths of the synthetic sources.
+	 */
+	static IPath[] sourcePaths(int fileCount) {
+		IPath[] paths = new IPath[fileCount];
+
+		for (int i = 0; i < fileCount; i++) {
+			String folder = i % 20 == 0 ? "/bin" : i % 2 == 0 ? "/src" : "/test";
+			String pkg = i % 10 == 5 ? "/generated" : "/p" + (i % 7) + "/q" + (i % 31);
+			paths[i] = new Path(PROJECT + folder + "/org/example" + pkg + "/File" + i + ".kt");
+		}
+		return paths;
+	}
+
+	/**
+	 * Returns a file whose full path and location are the given path.
+	 */
+	static IFile file(IPath path) {
+		return stub(IFile.class, "getFullPath", path, "getLocation", path, "getName", path.lastSegment(),
+				"getFileExtension", path.getFileExtension(), "getType", IResource.FILE);
+	}
+
+	private static IClasspathEntry sourceEntry(String path, IPath[] exclusionPatterns) {
+		return stub(IClasspathEntry.class, "getEntryKind", IClasspathEntry.CPE_SOURCE, "getPath", new Path(path),
+				"getInclusionPatterns", new IPath[0], "getExclusionPatterns", exclusionPatterns);
+	}
+
+	/**
+	 * Creates a proxy returning fixed values, given as alternating method names and values.
+	 * Other methods return null, equality is identity.
+	 */
+	static <T> T stub(Class<T> type, Object... namesAndValues) {
+		final Map<String, Object> values = new HashMap<String, Object>();
+
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			values.put((String) namesAndValues[i], namesAndValues[i + 1]);
+		}
+
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+
+				if (name.equals("equals")) {
+					return proxy == args[0];
+				} else if (name.equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				} else if (name.equals("toString")) {
+					return String.valueOf(values.get("getFullPath"));
+				}
+				return values.get(name);
+			}
+		};
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+}
@@ -15,9 +15,18 @@
  */
 package org.platonos.eclipse.kotlin;
 
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
+import org.platonos.eclipse.kotlin.builder.BackgroundCompiler;
+import org.platonos.eclipse.kotlin.builder.BuildStatistics;
+import org.platonos.eclipse.kotlin.builder.CompilerEnvironmentCache;
+import org.platonos.eclipse.kotlin.builder.CompilerWarmUp;
+import org.platonos.eclipse.kotlin.builder.KotlinProject;
+import org.platonos.eclipse.kotlin.builder.ParallelBuildSupport;
+import org.platonos.eclipse.kotlin.builder.SourceMappingManager;
+import org.platonos.eclipse.kotlin.daemon.KotlinDaemonClient;
 
 /**
  * @author Evert Tigchelaar (everttigchelaar@gmail.com)
@@ -45,6 +54,11 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		ResourcesPlugin.getWorkspace().addSaveParticipant(PLUGIN_ID, SourceMappingManager.getDefault());
+		KotlinProject.startup();
+		ParallelBuildSupport.checkWorkspace();
+		BuildStatistics.register();
+		CompilerWarmUp.start();
 	}
 
 	/*
@@ -52,6 +66,13 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		ResourcesPlugin.getWorkspace().removeSaveParticipant(PLUGIN_ID);
+		BuildStatistics.unregister();
+		CompilerWarmUp.stop();
+		BackgroundCompiler.getDefault().shutdown();
+		KotlinProject.shutdown();
+		KotlinDaemonClient.getDefault().shutdown();
+		CompilerEnvironmentCache.getDefault().dispose();
 		plugin = null;
 		super.stop(context);
 	}
@@ -0,0 +1,132 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin;
+
+import org.eclipse.core.runtime.Platform;
+
+/**
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ * 
+ * Access to the preferences of the plug-in. The preferences can be set in the
+ * workspace preferences or in a plugin_customization.ini.
+ */
+public class KotlinPreferences {
+
+	/**
+	 * Run the Kotlin compiler in a separate JVM instead of inside the IDE.
+	 */
+	public static final String COMPILE_DAEMON = "compileDaemon"; //$NON-NLS-1$
+
+	/**
+	 * Maximum heap size of the compile daemon, as passed to -Xmx.
+	 */
+	public static final String COMPILE_DAEMON_HEAP_SIZE = "compileDaemonHeapSize"; //$NON-NLS-1$
+
+	/**
+	 * Build independent Kotlin projects at the same time, each in its own compile daemon.
+	 * The workspace must allow concurrent builds as well, this is its "Max simultaneous
+	 * project builds" setting under General &gt; Workspace &gt; Build. The plug-in doesn't
+	 * change that setting.
+	 */
+	public static final String PARALLEL_BUILD = "parallelBuild"; //$NON-NLS-1$
+
+	/**
+	 * Maximum number of projects built at the same time, defaults to the number of cores.
+	 */
+	public static final String PARALLEL_BUILD_THREADS = "parallelBuildThreads"; //$NON-NLS-1$
+
+	/**
+	 * Compile the independent parts of a Kotlin project at the same time, each in its own compile daemon.
+	 */
+	public static final String PARALLEL_COMPILE = "parallelCompile"; //$NON-NLS-1$
+
+	/**
+	 * Compile Kotlin sources in a background job after saving instead of in the auto-build.
+	 */
+	public static final String BACKGROUND_COMPILE = "backgroundCompile"; //$NON-NLS-1$
+
+	/**
+	 * Milliseconds without a save before the background compilation starts.
+	 */
+	public static final String BACKGROUND_COMPILE_DELAY = "backgroundCompileDelay"; //$NON-NLS-1$
+
+	/**
+	 * Compile a small source after the plug-in started, so the first build finds the compiler warmed up.
+	 */
+	public static final String COMPILER_WARM_UP = "compilerWarmUp"; //$NON-NLS-1$
+
+	/**
+	 * Maximum size of the build cache in MB, 0 disables the cache. The cache is disabled by default.
+	 */
+	public static final String BUILD_CACHE_SIZE = "buildCacheSize"; //$NON-NLS-1$
+
+	private KotlinPreferences() {
+	}
+
+	public static boolean isCompileDaemonEnabled() {
+		return getBoolean(COMPILE_DAEMON, false);
+	}
+
+	/**
+	 * Returns true if compilations run in compile daemons, which parallel builds and
+	 * parallel compilation need.
+	 */
+	public static boolean isCompileDaemonUsed() {
+		return isCompileDaemonEnabled() || isParallelBuildEnabled() || isParallelCompileEnabled();
+	}
+
+	public static String getCompileDaemonHeapSize() {
+		return getString(COMPILE_DAEMON_HEAP_SIZE, "1024m");
+	}
+
+	public static boolean isParallelBuildEnabled() {
+		return getBoolean(PARALLEL_BUILD, false);
+	}
+
+	public static int getParallelBuildThreads() {
+		int threads = Platform.getPreferencesService().getInt(Activator.PLUGIN_ID, PARALLEL_BUILD_THREADS,
+				Runtime.getRuntime().availableProcessors(), null);
+		return Math.max(1, threads);
+	}
+
+	public static boolean isParallelCompileEnabled() {
+		return getBoolean(PARALLEL_COMPILE, false);
+	}
+
+	public static boolean isBackgroundCompileEnabled() {
+		return getBoolean(BACKGROUND_COMPILE, false);
+	}
+
+	public static long getBackgroundCompileDelay() {
+		return Math.max(0, Platform.getPreferencesService().getLong(Activator.PLUGIN_ID, BACKGROUND_COMPILE_DELAY, 500, null));
+	}
+
+	public static boolean isCompilerWarmUpEnabled() {
+		return getBoolean(COMPILER_WARM_UP, false);
+	}
+
+	public static long getBuildCacheSize() {
+		return Math.max(0, Platform.getPreferencesService().getLong(Activator.PLUGIN_ID, BUILD_CACHE_SIZE, 0, null));
+	}
+
+	private static boolean getBoolean(String key, boolean defaultValue) {
+		return Platform.getPreferencesService().getBoolean(Activator.PLUGIN_ID, key, defaultValue, null);
+	}
+
+	private static String getString(String key, String defaultValue) {
+		return Platform.getPreferencesService().getString(Activator.PLUGIN_ID, key, defaultValue, null);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.jet.cli.common.messages.CompilerMessageLocation;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageSeverity;
+import org.jetbrains.jet.cli.common.messages.MessageCollector;
+
+/**
+ * The diagnostics of the sources analyzed by {@link KotlinEclipseCompiler#analyze()}.
+ *
+ * A result is valid for the content hash of the source and its context, the classpath.
+ * The other sources of the project are seen through their classes in the output folder,
+ * so a source keeps its result while only other sources change, until the project is
+ * compiled and its results are invalidated.
+ * The least recently used results are evicted.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class AnalysisCache {
+
+	private static final int MAX_FILES = 2000;
+
+	private static final AnalysisCache INSTANCE = new AnalysisCache();
+
+	private final Map<String, Result> results = new LinkedHashMap<String, Result>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+			return size() > MAX_FILES;
+		}
+	};
+
+	public static AnalysisCache getDefault() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the diagnostics of a source, or null if it wasn't analyzed with this content and context.
+	 */
+	public synchronized List<Diagnostic> get(String path, String contentHash, String contextKey) {
+		Result result = results.get(path);
+
+		if (result == null || !result.contentHash.equals(contentHash) || !result.contextKey.equals(contextKey)) {
+			return null;
+		}
+		return result.diagnostics;
+	}
+
+	public synchronized void put(String projectName, String path, String contentHash, String contextKey, List<Diagnostic> diagnostics) {
+		results.put(path, new Result(projectName, contentHash, contextKey, Collections.unmodifiableList(diagnostics)));
+	}
+
+	/**
+	 * Drops the results of a project, because its classes changed.
+	 */
+	public synchronized void invalidate(String projectName) {
+		for (Iterator<Result> iter = results.values().iterator(); iter.hasNext();) {
+			if (iter.next().projectName.equals(projectName)) {
+				iter.remove();
+			}
+		}
+	}
+
+	public static String hash(byte[] content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			return new BigInteger(1, digest.digest(content)).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Result {
+
+		private final String projectName;
+		private final String contentHash;
+		private final String contextKey;
+		private final List<Diagnostic> diagnostics;
+
+		Result(String projectName, String contentHash, String contextKey, List<Diagnostic> diagnostics) {
+			this.projectName = projectName;
+			this.contentHash = contentHash;
+			this.contextKey = contextKey;
+			this.diagnostics = diagnostics;
+		}
+	}
+
+	public static class Diagnostic {
+
+		private final CompilerMessageSeverity severity;
+		private final String message;
+		private final int line;
+		private final int column;
+
+		public Diagnostic(CompilerMessageSeverity severity, String message, int line, int column) {
+			this.severity = severity;
+			this.message = message;
+			this.line = line;
+			this.column = column;
+		}
+
+		public boolean isError() {
+			return severity == CompilerMessageSeverity.ERROR || severity == CompilerMessageSeverity.EXCEPTION;
+		}
+
+		/**
+		 * Reports the diagnostic again, at the given source.
+		 */
+		public void report(MessageCollector messageCollector, String path) {
+			messageCollector.report(severity, message, CompilerMessageLocation.create(path, line, column));
+		}
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.IEditorReference;
+import org.eclipse.ui.IWorkbenchPage;
+import org.eclipse.ui.IWorkbenchWindow;
+import org.eclipse.ui.PartInitException;
+import org.eclipse.ui.PlatformUI;
+import org.platonos.eclipse.kotlin.KotlinPreferences;
+
+/**
+ * Compiles Kotlin projects in a background job after a series of saves.
+ *
+ * When background compilation is enabled the {@link KotlinBuilder} doesn't compile
+ * during the auto-build. It keeps the changes and schedules the job of the project.
+ * Every save moves the start of the job back by the delay, and cancels the job if it
+ * is already compiling, so the job compiles the changes of all saves at once. Sources
+ * open in an editor are compiled before the other sources. The Java builder runs after
+ * the compilation, so the Java sources are built against the new classes.
+ *
+ * The changed sources are analyzed in a job of their own, which waits a shorter delay
+ * in the same way, so their problems show before the compilation starts.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class BackgroundCompiler {
+
+	/**
+	 * The build argument with the workspace paths of the sources to compile first, separated by newlines.
+	 */
+	public static final String PRIORITY_FILES = "priorityFiles"; //$NON-NLS-1$
+
+	/**
+	 * The milliseconds the analysis waits for the next save.
+	 */
+	private static final long ANALYSIS_DELAY = 300;
+
+	private static final BackgroundCompiler INSTANCE = new BackgroundCompiler();
+
+	private final Map<String, CompileJob> jobs = new HashMap<String, CompileJob>();
+
+	private final Map<String, AnalysisJob> analysisJobs = new HashMap<String, AnalysisJob>();
+
+	private volatile Set<IPath> openFiles = Collections.emptySet();
+
+	public static BackgroundCompiler getDefault() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Compiles the project after the delay. A compilation of the project that is waiting
+	 * or running is replaced.
+	 */
+	public synchronized void schedule(IProject project) {
+		CompileJob job = jobs.get(project.getName());
+
+		if (job == null) {
+			job = new CompileJob(project);
+			jobs.put(project.getName(), job);
+		}
+
+		job.cancel();
+		job.schedule(KotlinPreferences.getBackgroundCompileDelay());
+		updateOpenFiles();
+	}
+
+	/**
+	 * Analyzes the sources after a short delay and publishes their problems. An analysis
+	 * of the project that is waiting or running is replaced by one of its sources and
+	 * these sources.
+	 */
+	public synchronized void analyze(IProject project, Collection<IResource> sources, String[] classpath) {
+		AnalysisJob job = analysisJobs.get(project.getName());
+
+		if (job == null) {
+			job = new AnalysisJob(project);
+			analysisJobs.put(project.getName(), job);
+		}
+
+		job.cancel();
+		job.add(sources, classpath);
+		job.schedule(ANALYSIS_DELAY);
+	}
+
+	public synchronized void shutdown() {
+		for (CompileJob job : jobs.values()) {
+			job.cancel();
+		}
+		jobs.clear();
+
+		for (AnalysisJob job : analysisJobs.values()) {
+			job.cancel();
+		}
+		analysisJobs.clear();
+	}
+
+	/**
+	 * Returns the paths of the sources to compile first from the build arguments.
+	 */
+	static Set<IPath> getPriorityFiles(Map<String, String> args) {
+		String files = args != null ? args.get(PRIORITY_FILES) : null;
+
+		if (files == null || files.length() == 0) {
+			return Collections.emptySet();
+		}
+
+		Set<IPath> paths = new HashSet<IPath>();
+		for (String file : files.split("\n")) {
+			paths.add(new Path(file));
+		}
+		return paths;
+	}
+
+	/**
+	 * Looks up the files open in editors in the UI thread, the job uses the files found last.
+	 */
+	private void updateOpenFiles() {
+		if (!PlatformUI.isWorkbenchRunning()) {
+			return;
+		}
+
+		PlatformUI.getWorkbench().getDisplay().asyncExec(new Runnable() {
+			@Override
+			public void run() {
+				openFiles = findOpenFiles();
+			}
+		});
+	}
+
+	private static Set<IPath> findOpenFiles() {
+		Set<IPath> files = new HashSet<IPath>();
+
+		for (IWorkbenchWindow window : PlatformUI.getWorkbench().getWorkbenchWindows()) {
+			for (IWorkbenchPage page : window.getPages()) {
+				for (IEditorReference reference : page.getEditorReferences()) {
+					try {
+						IEditorInput input = reference.getEditorInput();
+						IFile file = (IFile) input.getAdapter(IFile.class);
+
+						if (file != null) {
+							files.add(file.getFullPath());
+						}
+					} catch (PartInitException e) {
+						// An editor that failed to open has no file to compile first.
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	private class CompileJob extends Job {
+
+		private final IProject project;
+
+		CompileJob(IProject project) {
+			super("Compiling Kotlin sources of " + project.getName());
+			this.project = project;
+			setPriority(Job.SHORT);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			if (!project.isAccessible()) {
+				return Status.OK_STATUS;
+			}
+
+			StringBuilder files = new StringBuilder();
+			for (IPath file : openFiles) {
+				files.append(file).append('\n');
+			}
+
+			Map<String, String> args = new HashMap<String, String>();
+			args.put(PRIORITY_FILES, files.toString());
+
+			try {
+				project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, KotlinBuilder.BUILDER_ID, args, monitor);
+				project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, JavaCore.BUILDER_ID, null, monitor);
+			} catch (OperationCanceledException e) {
+				return Status.CANCEL_STATUS;
+			} catch (CoreException e) {
+				return e.getStatus();
+			}
+			return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+		}
+
+		@Override
+		public boolean belongsTo(Object family) {
+			return family == BackgroundCompiler.this;
+		}
+	}
+
+	/**
+	 * Analyzes the sources saved since its last analysis, outside the build so it never
+	 * holds up the auto-build. Sources analyzed before with the same content get their
+	 * diagnostics from the {@link AnalysisCache}.
+	 */
+	private class AnalysisJob extends Job {
+
+		private final IProject project;
+
+		private final Set<IResource> sources = new LinkedHashSet<IResource>();
+
+		private String[] classpath;
+
+		/**
+		 * Counts the additions, sources added while the job ran are kept for the next run.
+		 */
+		private int additions;
+
+		AnalysisJob(IProject project) {
+			super("Analyzing Kotlin sources of " + project.getName());
+			this.project = project;
+			setPriority(Job.SHORT);
+			setSystem(true);
+		}
+
+		synchronized void add(Collection<IResource> resources, String[] classpath) {
+			sources.addAll(resources);
+			this.classpath = classpath;
+			additions++;
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			List<IResource> resources = new ArrayList<IResource>();
+			String[] classpath;
+			int analyzed;
+
+			synchronized (this) {
+				for (IResource resource : sources) {
+					if (resource.isAccessible()) {
+						resources.add(resource);
+					}
+				}
+				classpath = this.classpath;
+				analyzed = additions;
+			}
+
+			if (resources.isEmpty() || !project.isAccessible()) {
+				return Status.OK_STATUS;
+			}
+
+			KotlinEclipseCompiler compiler = new KotlinEclipseCompiler();
+			compiler.setProjectName(project.getName());
+			compiler.setSources(resources);
+			compiler.setClasspath(classpath);
+
+			MarkerPublisher markerPublisher = new MarkerPublisher(KotlinBuilder.MARKER_TYPE);
+
+			for (IResource resource : resources) {
+				markerPublisher.addScope(resource);
+			}
+
+			compiler.setMessageCollector(new EclipseMessageCollector(project, markerPublisher, resources));
+			compiler.setProgressMonitor(monitor);
+
+			try {
+				compiler.analyze();
+				markerPublisher.publish(project, monitor);
+			} catch (OperationCanceledException e) {
+				return Status.CANCEL_STATUS;
+			} catch (CoreException e) {
+				return e.getStatus();
+			}
+
+			synchronized (this) {
+				if (additions == analyzed) {
+					sources.clear();
+				}
+			}
+			return Status.OK_STATUS;
+		}
+
+		@Override
+		public boolean belongsTo(Object family) {
+			return family == BackgroundCompiler.this;
+		}
+	}
+}
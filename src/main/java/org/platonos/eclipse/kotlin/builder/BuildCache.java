@@ -0,0 +1,522 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.platonos.eclipse.kotlin.Activator;
+import org.platonos.eclipse.kotlin.KotlinPreferences;
+
+/**
+ * Keeps the classes of full builds on disk, so building the same sources again, after
+ * a clean or when switching back to a branch, copies the classes instead of compiling.
+ *
+ * An entry is addressed by the hash of its inputs: the paths and content of the
+ * sources, the content of the classpath and the settings of the compiler. Of the
+ * folders of the classpath inside the project, like the source folders, only the Java
+ * sources and classes the compiler reads are hashed. The Kotlin sources are hashed
+ * already, and team private and derived resources, like the .git folder and the output
+ * folders the build writes itself, are left out. A change of a Java source therefore
+ * gives another key. The digests of the classpath files are kept by path, size and
+ * modification time, so an unchanged jar isn't read again. An entry holds the classes, relative to the output folder, and the mapping of
+ * the sources to the classes. Entries are written to a temporary folder first, so an
+ * entry is either complete or missing. When the cache grows beyond its size the least
+ * recently used entries are deleted.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class BuildCache {
+
+	private static final String CACHE_DIR = "buildCache"; //$NON-NLS-1$
+
+	private static final String CLASSES_DIR = "classes"; //$NON-NLS-1$
+
+	private static final String OUTPUTS_FILE = "outputs"; //$NON-NLS-1$
+
+	private static final String TEMP_PREFIX = "."; //$NON-NLS-1$
+
+	private static final String KOTLIN_SOURCE_EXT = ".kt"; //$NON-NLS-1$
+
+	private static final String JAVA_SOURCE_EXT = ".java"; //$NON-NLS-1$
+
+	private static final String CLASS_EXT = ".class"; //$NON-NLS-1$
+
+	private static final int MAX_FILE_DIGESTS = 10000;
+
+	private static final long BYTES_PER_MB = 1024 * 1024;
+
+	private static final BuildCache INSTANCE = new BuildCache();
+
+	/**
+	 * The digests of the files of the classpath by path.
+	 */
+	private static final Map<String, FileDigest> fileDigests = new LinkedHashMap<String, FileDigest>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, FileDigest> eldest) {
+			return size() > MAX_FILE_DIGESTS;
+		}
+	};
+
+	/**
+	 * The sizes of the entries in bytes, entries don't change once written.
+	 */
+	private final Map<String, Long> sizes = new HashMap<String, Long>();
+
+	public static BuildCache getDefault() {
+		return INSTANCE;
+	}
+
+	public static boolean isEnabled() {
+		return KotlinPreferences.getBuildCacheSize() > 0;
+	}
+
+	/**
+	 * Returns the key of the entry for the inputs of a build.
+	 *
+	 * @param projectDir the location of the project, the sources are hashed with their path relative to it.
+	 * @param sourcePaths the paths of the sources.
+	 * @param classpath the classpath, hashed by content. Entries in the project are hashed by their path relative to it.
+	 * @param outputDirs the output folders of the project, they are left out of the classpath.
+	 * @param settings the settings of the compiler.
+	 */
+	public static String computeKey(String projectDir, List<String> sourcePaths, String[] classpath,
+			Collection<String> outputDirs, String settings) throws IOException {
+		MessageDigest digest = newDigest();
+		update(digest, settings);
+
+		List<String> sorted = new ArrayList<String>(sourcePaths);
+		Collections.sort(sorted);
+
+		for (String sourcePath : sorted) {
+			String relative = relativize(projectDir, sourcePath);
+			update(digest, relative != null ? relative : sourcePath);
+			hashContent(digest, new File(sourcePath));
+		}
+
+		Set<File> skipped = new HashSet<File>();
+
+		for (String outputDir : outputDirs) {
+			skipped.add(new File(outputDir).getAbsoluteFile());
+		}
+
+		for (String entry : classpath) {
+			String path = entry.replace(File.separatorChar, '/');
+			String relative = path.equals(projectDir) ? "" : relativize(projectDir, path);
+			File file = new File(entry).getAbsoluteFile();
+
+			if (skipped.contains(file)) {
+				continue;
+			}
+
+			// Folders of the project, like Java source folders, are hashed by their path in the project.
+			update(digest, relative != null ? relative : entry);
+			IContainer container = relative != null ? ResourcesPlugin.getWorkspace().getRoot().getContainerForLocation(new Path(entry)) : null;
+
+			if (container != null) {
+				hashProjectFolder(digest, container, skipped);
+			} else {
+				hashTree(digest, file, "", skipped);
+			}
+		}
+		return new BigInteger(1, digest.digest()).toString(16);
+	}
+
+	/**
+	 * Copies the classes of an entry to the output folder.
+	 *
+	 * @return the paths of the classes by the paths of their sources, or null if there is no entry for the key.
+	 */
+	public synchronized Map<String, List<String>> restore(String key, String projectDir, String outputDir) {
+		File entryDir = new File(getCacheDir(), key);
+		File outputsFile = new File(entryDir, OUTPUTS_FILE);
+
+		if (!outputsFile.isFile()) {
+			return null;
+		}
+
+		try {
+			Map<String, List<String>> outputs = readOutputs(outputsFile, projectDir, outputDir);
+			File classesDir = new File(entryDir, CLASSES_DIR);
+
+			for (List<String> classes : outputs.values()) {
+				for (String output : classes) {
+					String relative = relativize(outputDir, output);
+					FileSupport.copy(new File(classesDir, relative), new File(output));
+				}
+			}
+
+			entryDir.setLastModified(System.currentTimeMillis());
+			return outputs;
+		} catch (IOException e) {
+			log("Failed to restore Kotlin classes from the build cache", e);
+			FileSupport.delete(entryDir);
+			sizes.remove(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the classes of a build as the entry for the key. Nothing is added if a class
+	 * is outside the output folder or a source is outside the project.
+	 *
+	 * @param outputs the paths of the classes by the paths of their sources.
+	 */
+	public synchronized void store(String key, String projectDir, String outputDir, Map<String, List<String>> outputs) {
+		File cacheDir = getCacheDir();
+		File entryDir = new File(cacheDir, key);
+
+		if (entryDir.exists()) {
+			entryDir.setLastModified(System.currentTimeMillis());
+			return;
+		}
+
+		File tempDir = new File(cacheDir, TEMP_PREFIX + key);
+		FileSupport.delete(tempDir);
+
+		try {
+			File classesDir = new File(tempDir, CLASSES_DIR);
+			Map<String, List<String>> relativeOutputs = new LinkedHashMap<String, List<String>>();
+
+			for (Map.Entry<String, List<String>> entry : outputs.entrySet()) {
+				String source = relativize(projectDir, entry.getKey());
+				List<String> classes = new ArrayList<String>();
+
+				if (source == null) {
+					return;
+				}
+
+				for (String output : entry.getValue()) {
+					String relative = relativize(outputDir, output);
+
+					if (relative == null) {
+						return;
+					}
+					FileSupport.copy(new File(output), new File(classesDir, relative));
+					classes.add(relative);
+				}
+				relativeOutputs.put(source, classes);
+			}
+
+			writeOutputs(new File(tempDir, OUTPUTS_FILE), relativeOutputs);
+
+			if (!tempDir.renameTo(entryDir)) {
+				throw new IOException("Failed to rename " + tempDir + " to " + entryDir);
+			}
+			sizes.put(key, sizeOf(entryDir));
+		} catch (IOException e) {
+			log("Failed to add Kotlin classes to the build cache", e);
+		} finally {
+			FileSupport.delete(tempDir);
+		}
+
+		evict(KotlinPreferences.getBuildCacheSize() * BYTES_PER_MB);
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache fits in the given size.
+	 */
+	private void evict(long maxSize) {
+		File[] entries = getCacheDir().listFiles();
+
+		if (entries == null) {
+			return;
+		}
+
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified();
+				long m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+
+		long total = 0;
+
+		for (File entry : entries) {
+			total += getSize(entry);
+		}
+
+		for (int i = 0; i < entries.length && total > maxSize; i++) {
+			total -= getSize(entries[i]);
+			sizes.remove(entries[i].getName());
+			FileSupport.delete(entries[i]);
+		}
+	}
+
+	private long getSize(File entry) {
+		Long size = sizes.get(entry.getName());
+
+		if (size == null) {
+			size = sizeOf(entry);
+			sizes.put(entry.getName(), size);
+		}
+		return size;
+	}
+
+	private static Map<String, List<String>> readOutputs(File file, String projectDir, String outputDir) throws IOException {
+		Map<String, List<String>> outputs = new LinkedHashMap<String, List<String>>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+		try {
+			List<String> classes = null;
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("\t")) {
+					if (classes == null) {
+						throw new IOException("Class without source in " + file);
+					}
+					classes.add(outputDir + "/" + line.substring(1));
+				} else if (line.length() > 0) {
+					classes = new ArrayList<String>();
+					outputs.put(projectDir + "/" + line, classes);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return outputs;
+	}
+
+	/**
+	 * Writes a line per source, followed by a line per class starting with a tab.
+	 */
+	private static void writeOutputs(File file, Map<String, List<String>> outputs) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+		try {
+			for (Map.Entry<String, List<String>> entry : outputs.entrySet()) {
+				writer.write(entry.getKey());
+				writer.write('\n');
+
+				for (String output : entry.getValue()) {
+					writer.write('\t');
+					writer.write(output);
+					writer.write('\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Returns the path relative to the folder, or null if the path isn't in the folder.
+	 * Both paths use '/' as separator.
+	 */
+	private static String relativize(String dir, String path) {
+		return path.startsWith(dir + "/") ? path.substring(dir.length() + 1) : null;
+	}
+
+	/**
+	 * Hashes the names and content of the Java sources and classes in a folder of the
+	 * project. Team private members aren't visited, derived resources and the skipped
+	 * folders are left out.
+	 */
+	private static void hashProjectFolder(MessageDigest digest, IContainer container, final Set<File> skipped) throws IOException {
+		final Map<String, File> files = new TreeMap<String, File>();
+		final IPath base = container.getFullPath();
+
+		try {
+			container.accept(new IResourceProxyVisitor() {
+				@Override
+				public boolean visit(IResourceProxy proxy) {
+					if (proxy.isDerived()) {
+						return false;
+					}
+
+					if (proxy.getType() == IResource.FILE) {
+						String name = proxy.getName();
+
+						if (name.endsWith(JAVA_SOURCE_EXT) || name.endsWith(CLASS_EXT)) {
+							IResource resource = proxy.requestResource();
+							files.put(resource.getFullPath().makeRelativeTo(base).toString(), resource.getLocation().toFile());
+						}
+						return false;
+					}
+
+					IPath location = proxy.requestResource().getLocation();
+					return location == null || !skipped.contains(location.toFile().getAbsoluteFile());
+				}
+			}, IResource.NONE);
+		} catch (CoreException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+
+		for (Map.Entry<String, File> entry : files.entrySet()) {
+			update(digest, entry.getKey());
+			digest.update(getFileDigest(entry.getValue()));
+		}
+	}
+
+	/**
+	 * Hashes the names and content of the files in a folder, leaving out the skipped folders
+	 * and the Kotlin sources. The compiler only reads classes from the classpath, the
+	 * Kotlin sources it compiles are hashed by themselves.
+	 */
+	private static void hashTree(MessageDigest digest, File file, String name, Set<File> skipped) throws IOException {
+		if (skipped.contains(file)) {
+			return;
+		}
+
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+
+			if (children == null) {
+				return;
+			}
+
+			// The order of listFiles differs per file system.
+			Arrays.sort(children);
+
+			for (File child : children) {
+				hashTree(digest, child, name + "/" + child.getName(), skipped);
+			}
+		} else if (file.isFile() && !file.getName().endsWith(KOTLIN_SOURCE_EXT)) {
+			update(digest, name);
+			digest.update(getFileDigest(file));
+		}
+	}
+
+	/**
+	 * Returns the digest of the content of a file, computed again only when its size or
+	 * modification time changed.
+	 */
+	private static byte[] getFileDigest(File file) throws IOException {
+		String path = file.getAbsolutePath();
+		long length = file.length();
+		long lastModified = file.lastModified();
+
+		synchronized (fileDigests) {
+			FileDigest cached = fileDigests.get(path);
+
+			if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+				return cached.digest;
+			}
+		}
+
+		MessageDigest fileDigest = newDigest();
+		hashContent(fileDigest, file);
+		byte[] result = fileDigest.digest();
+
+		synchronized (fileDigests) {
+			fileDigests.put(path, new FileDigest(length, lastModified, result));
+		}
+		return result;
+	}
+
+	private static void hashContent(MessageDigest digest, File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+
+		try {
+			byte[] buffer = new byte[65536];
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void update(MessageDigest digest, String value) throws IOException {
+		digest.update(value.getBytes("UTF-8"));
+		digest.update((byte) 0);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long sizeOf(File file) {
+		File[] children = file.listFiles();
+
+		if (children == null) {
+			return file.length();
+		}
+
+		long size = 0;
+		for (File child : children) {
+			size += sizeOf(child);
+		}
+		return size;
+	}
+
+	private static File getCacheDir() {
+		File dir = Activator.getDefault().getStateLocation().append(CACHE_DIR).toFile();
+		dir.mkdirs();
+		return dir;
+	}
+
+	private static void log(String message, Throwable e) {
+		Activator.getDefault().getLog().log(new Status(IStatus.WARNING, Activator.PLUGIN_ID, message, e));
+	}
+
+	private static class FileDigest {
+
+		private final long length;
+		private final long lastModified;
+		private final byte[] digest;
+
+		FileDigest(long length, long lastModified, byte[] digest) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The timings and counts of a single build of a Kotlin project.
+ *
+ * Phases run one after the other, starting a phase ends the previous one. The
+ * phases of the compiler are named by {@link KotlinJvmCompilation}. Mapping the
+ * outputs happens while the classes are written, its time is added separately
+ * and is also part of the time of writing the classes.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class BuildMetrics {
+
+	public static final String VISITING_RESOURCES = "Visiting resources";
+
+	public static final String ASSEMBLING_CLASSPATH = "Assembling classpath";
+
+	public static final String PARTITIONING_SOURCES = "Partitioning sources";
+
+	public static final String MAPPING_OUTPUTS = "Mapping outputs";
+
+	public static final String UPDATING_DEPENDENCIES = "Updating dependencies";
+
+	public static final String PUBLISHING_MARKERS = "Publishing markers";
+
+	public static final String REFRESHING_OUTPUTS = "Refreshing outputs";
+
+	public static final String HASHING_INPUTS = "Hashing inputs";
+
+	public static final String RESTORING_OUTPUTS = "Restoring cached outputs";
+
+	private final String projectName;
+	private final boolean fullBuild;
+	private final long start = System.nanoTime();
+
+	private final Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>();
+	private String currentPhase;
+	private long phaseStart;
+
+	private int sourceCount;
+	private int outputCount;
+	private int problemCount;
+	private long buildTime;
+	private long heapUsed;
+
+	public BuildMetrics(String projectName, boolean fullBuild) {
+		this.projectName = projectName;
+		this.fullBuild = fullBuild;
+	}
+
+	public void beginPhase(String name) {
+		endPhase();
+		currentPhase = name;
+		phaseStart = System.nanoTime();
+	}
+
+	public void endPhase() {
+		if (currentPhase != null) {
+			addTime(currentPhase, System.nanoTime() - phaseStart);
+			currentPhase = null;
+		}
+	}
+
+	public void addTime(String phase, long nanos) {
+		Long time = phaseTimes.get(phase);
+		phaseTimes.put(phase, time == null ? nanos : time + nanos);
+	}
+
+	public void addSources(int count) {
+		sourceCount += count;
+	}
+
+	public void addOutput() {
+		outputCount++;
+	}
+
+	public void addProblems(int count) {
+		problemCount += count;
+	}
+
+	/**
+	 * Ends the last phase and takes the build time and the used heap.
+	 */
+	public void finish() {
+		endPhase();
+		buildTime = System.nanoTime() - start;
+		Runtime runtime = Runtime.getRuntime();
+		heapUsed = runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public String getProjectName() {
+		return projectName;
+	}
+
+	public boolean isFullBuild() {
+		return fullBuild;
+	}
+
+	/**
+	 * Returns the time spent in each phase in nanoseconds, in the order the phases started.
+	 */
+	public Map<String, Long> getPhaseTimes() {
+		return Collections.unmodifiableMap(phaseTimes);
+	}
+
+	public int getSourceCount() {
+		return sourceCount;
+	}
+
+	public int getOutputCount() {
+		return outputCount;
+	}
+
+	public int getProblemCount() {
+		return problemCount;
+	}
+
+	/**
+	 * Returns the time of the whole build in nanoseconds.
+	 */
+	public long getBuildTime() {
+		return buildTime;
+	}
+
+	/**
+	 * Returns the heap in use at the end of the build in bytes.
+	 */
+	public long getHeapUsed() {
+		return heapUsed;
+	}
+}
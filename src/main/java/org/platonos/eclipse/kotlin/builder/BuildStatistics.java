@@ -0,0 +1,230 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.platonos.eclipse.kotlin.Activator;
+
+/**
+ * Keeps the metrics of the most recent Kotlin builds of the workspace and exposes
+ * them as MBean, so slow builds can be looked into with JConsole or any other JMX
+ * client, also in a headless build.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class BuildStatistics implements BuildStatisticsMBean {
+
+	public static final String OBJECT_NAME = "EclipseKotlin:type=BuildStatistics"; //$NON-NLS-1$
+
+	private static final int RECENT_BUILDS = 100;
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	private static final BuildStatistics INSTANCE = new BuildStatistics();
+
+	private final LinkedList<BuildMetrics> recent = new LinkedList<BuildMetrics>();
+
+	private long buildCount = 0;
+
+	public static BuildStatistics getDefault() {
+		return INSTANCE;
+	}
+
+	public synchronized void record(BuildMetrics metrics) {
+		recent.addLast(metrics);
+
+		if (recent.size() > RECENT_BUILDS) {
+			recent.removeFirst();
+		}
+		buildCount++;
+	}
+
+	@Override
+	public synchronized long getBuildCount() {
+		return buildCount;
+	}
+
+	@Override
+	public synchronized int getRecentBuildCount() {
+		return recent.size();
+	}
+
+	@Override
+	public synchronized String getLastBuild() {
+		if (recent.isEmpty()) {
+			return null;
+		}
+
+		BuildMetrics last = recent.getLast();
+		return String.format("%s (%s): %d ms, %d sources, %d outputs, %d problems, %d MB heap",
+				last.getProjectName(), last.isFullBuild() ? "full" : "incremental",
+				last.getBuildTime() / NANOS_PER_MILLI, last.getSourceCount(), last.getOutputCount(),
+				last.getProblemCount(), last.getHeapUsed() / (1024 * 1024));
+	}
+
+	@Override
+	public synchronized double getAverageBuildTime() {
+		if (recent.isEmpty()) {
+			return 0;
+		}
+
+		long total = 0;
+		for (BuildMetrics metrics : recent) {
+			total += metrics.getBuildTime();
+		}
+		return (double) total / recent.size() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public synchronized long getMaxBuildTime() {
+		long max = 0;
+		for (BuildMetrics metrics : recent) {
+			max = Math.max(max, metrics.getBuildTime());
+		}
+		return max / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public synchronized double getAverageSourceCount() {
+		if (recent.isEmpty()) {
+			return 0;
+		}
+
+		long total = 0;
+		for (BuildMetrics metrics : recent) {
+			total += metrics.getSourceCount();
+		}
+		return (double) total / recent.size();
+	}
+
+	@Override
+	public synchronized double getAverageOutputCount() {
+		if (recent.isEmpty()) {
+			return 0;
+		}
+
+		long total = 0;
+		for (BuildMetrics metrics : recent) {
+			total += metrics.getOutputCount();
+		}
+		return (double) total / recent.size();
+	}
+
+	@Override
+	public synchronized double getAverageProblemCount() {
+		if (recent.isEmpty()) {
+			return 0;
+		}
+
+		long total = 0;
+		for (BuildMetrics metrics : recent) {
+			total += metrics.getProblemCount();
+		}
+		return (double) total / recent.size();
+	}
+
+	@Override
+	public synchronized long getMaxHeapUsed() {
+		long max = 0;
+		for (BuildMetrics metrics : recent) {
+			max = Math.max(max, metrics.getHeapUsed());
+		}
+		return max;
+	}
+
+	@Override
+	public long getBuildStateSize() {
+		return SourceMappingManager.getDefault().estimateSize();
+	}
+
+	@Override
+	public synchronized String[] getPhaseTimes() {
+		// Per phase the total time, the maximum time and the number of builds it ran in.
+		Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+
+		for (BuildMetrics metrics : recent) {
+			for (Map.Entry<String, Long> entry : metrics.getPhaseTimes().entrySet()) {
+				long[] times = phases.get(entry.getKey());
+
+				if (times == null) {
+					times = new long[3];
+					phases.put(entry.getKey(), times);
+				}
+				times[0] += entry.getValue();
+				times[1] = Math.max(times[1], entry.getValue());
+				times[2]++;
+			}
+		}
+
+		String[] lines = new String[phases.size()];
+		int i = 0;
+
+		for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+			long[] times = entry.getValue();
+			lines[i++] = String.format("%s: average %.1f ms, max %d ms, %d builds", entry.getKey(),
+					(double) times[0] / times[2] / NANOS_PER_MILLI, times[1] / NANOS_PER_MILLI, times[2]);
+		}
+		return lines;
+	}
+
+	@Override
+	public synchronized void reset() {
+		recent.clear();
+		buildCount = 0;
+	}
+
+	/**
+	 * Registers the statistics with the platform MBean server.
+	 */
+	public static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+
+			if (!server.isRegistered(name)) {
+				server.registerMBean(INSTANCE, name);
+			}
+		} catch (Exception e) {
+			log("Failed to register the Kotlin build statistics", e);
+		}
+	}
+
+	public static void unregister() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (Exception e) {
+			log("Failed to unregister the Kotlin build statistics", e);
+		}
+	}
+
+	private static void log(String message, Throwable e) {
+		Activator.getDefault().getLog().log(new Status(IStatus.WARNING, Activator.PLUGIN_ID, message, e));
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+/**
+ * The management interface of the {@link BuildStatistics}. Averages and maxima are
+ * taken over the most recent builds, times are in milliseconds.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public interface BuildStatisticsMBean {
+
+	/**
+	 * Returns the number of builds since the plug-in started or the statistics were reset.
+	 */
+	long getBuildCount();
+
+	/**
+	 * Returns the number of recent builds the averages and maxima are taken over.
+	 */
+	int getRecentBuildCount();
+
+	String getLastBuild();
+
+	double getAverageBuildTime();
+
+	long getMaxBuildTime();
+
+	double getAverageSourceCount();
+
+	double getAverageOutputCount();
+
+	double getAverageProblemCount();
+
+	long getMaxHeapUsed();
+
+	/**
+	 * Returns an estimate of the heap used by the source mappings and dependency graphs in bytes.
+	 */
+	long getBuildStateSize();
+
+	/**
+	 * Returns a line per phase with its average and maximum time.
+	 */
+	String[] getPhaseTimes();
+
+	void reset();
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The parts of a class file the builder needs to find dependent sources.
+ *
+ * The referenced classes are taken from the constant pool and the descriptors. The ABI
+ * hash covers everything other classes can depend on: the class header, the non private
+ * fields and methods, constant values and annotations, which includes the Kotlin metadata.
+ * Bodies of inline functions are copied into their callers so they are part of the ABI too.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class ClassFileInfo {
+
+	private static final int ACC_PRIVATE = 0x0002;
+	private static final int ACC_SYNTHETIC = 0x1000;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+	private final String name;
+	private final Set<String> references;
+	private final long abiHash;
+
+	private ClassFileInfo(String name, Set<String> references, long abiHash) {
+		this.name = name;
+		this.references = references;
+		this.abiHash = abiHash;
+	}
+
+	/**
+	 * The internal name of the class, like kotlin/io/IoPackage.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Internal names of all classes this class refers to, not including itself.
+	 */
+	public Set<String> getReferences() {
+		return references;
+	}
+
+	public long getAbiHash() {
+		return abiHash;
+	}
+
+	public static ClassFileInfo read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return read(bytes);
+	}
+
+	public static ClassFileInfo read(byte[] bytes) throws IOException {
+		return new Parser(bytes).parse();
+	}
+
+	private static class Parser {
+
+		private final DataInputStream in;
+		private Object[] constants;
+		private int[] tags;
+		private final Set<String> references = new HashSet<String>();
+		private final List<String> abi = new ArrayList<String>();
+
+		Parser(byte[] bytes) {
+			in = new DataInputStream(new ByteArrayInputStream(bytes));
+		}
+
+		ClassFileInfo parse() throws IOException {
+			if (in.readInt() != 0xCAFEBABE) {
+				throw new IOException("Not a class file");
+			}
+			in.readUnsignedShort();
+			in.readUnsignedShort();
+
+			readConstantPool();
+
+			int access = in.readUnsignedShort();
+			String name = className(in.readUnsignedShort());
+			int superIndex = in.readUnsignedShort();
+			StringBuilder header = new StringBuilder("class ").append(access).append(' ').append(name);
+
+			if (superIndex != 0) {
+				header.append(" extends ").append(className(superIndex));
+			}
+
+			int interfaceCount = in.readUnsignedShort();
+			for (int i = 0; i < interfaceCount; i++) {
+				header.append(" implements ").append(className(in.readUnsignedShort()));
+			}
+			abi.add(header.toString());
+
+			readMembers("field ");
+			readMembers("method ");
+			abi.addAll(readAttributes("class ", false).annotations);
+
+			references.remove(name);
+			Collections.sort(abi);
+			return new ClassFileInfo(name, Collections.unmodifiableSet(references), hash(abi));
+		}
+
+		private void readConstantPool() throws IOException {
+			int count = in.readUnsignedShort();
+			constants = new Object[count];
+			tags = new int[count];
+			List<Integer> classes = new ArrayList<Integer>();
+			List<Integer> descriptors = new ArrayList<Integer>();
+
+			for (int i = 1; i < count; i++) {
+				int tag = in.readUnsignedByte();
+				tags[i] = tag;
+
+				switch (tag) {
+				case CONSTANT_UTF8:
+					constants[i] = in.readUTF();
+					break;
+				case CONSTANT_INTEGER:
+					constants[i] = in.readInt();
+					break;
+				case CONSTANT_FLOAT:
+					constants[i] = in.readFloat();
+					break;
+				case CONSTANT_LONG:
+					constants[i++] = in.readLong();
+					break;
+				case CONSTANT_DOUBLE:
+					constants[i++] = in.readDouble();
+					break;
+				case CONSTANT_CLASS:
+					constants[i] = in.readUnsignedShort();
+					classes.add(i);
+					break;
+				case CONSTANT_STRING:
+					constants[i] = in.readUnsignedShort();
+					break;
+				case CONSTANT_METHOD_TYPE:
+					descriptors.add(in.readUnsignedShort());
+					break;
+				case CONSTANT_NAME_AND_TYPE:
+					in.readUnsignedShort();
+					descriptors.add(in.readUnsignedShort());
+					break;
+				case CONSTANT_FIELDREF:
+				case CONSTANT_METHODREF:
+				case CONSTANT_INTERFACE_METHODREF:
+				case CONSTANT_INVOKE_DYNAMIC:
+					in.readInt();
+					break;
+				case CONSTANT_METHOD_HANDLE:
+					in.readUnsignedByte();
+					in.readUnsignedShort();
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+
+			for (int index : classes) {
+				addClassReference(className(index));
+			}
+
+			for (int index : descriptors) {
+				addDescriptorReferences((String) constants[index]);
+			}
+		}
+
+		private void readMembers(String kind) throws IOException {
+			int count = in.readUnsignedShort();
+
+			for (int i = 0; i < count; i++) {
+				int access = in.readUnsignedShort();
+				String name = utf8(in.readUnsignedShort());
+				String descriptor = utf8(in.readUnsignedShort());
+				addDescriptorReferences(descriptor);
+
+				Attributes attributes = readAttributes(kind + name + descriptor + ' ', true);
+
+				if ((access & (ACC_PRIVATE | ACC_SYNTHETIC)) == 0) {
+					StringBuilder member = new StringBuilder(kind).append(access).append(' ').append(name).append(descriptor);
+
+					if (attributes.constantValue != null) {
+						member.append(" = ").append(attributes.constantValue);
+					}
+
+					if (attributes.inline && attributes.code != null) {
+						CRC32 crc = new CRC32();
+						crc.update(attributes.code);
+						member.append(" code ").append(crc.getValue());
+					}
+					abi.add(member.toString());
+					abi.addAll(attributes.annotations);
+				}
+			}
+		}
+
+		private Attributes readAttributes(String owner, boolean member) throws IOException {
+			Attributes attributes = new Attributes();
+			int count = in.readUnsignedShort();
+
+			for (int i = 0; i < count; i++) {
+				String name = utf8(in.readUnsignedShort());
+				int length = in.readInt();
+
+				if ("RuntimeVisibleAnnotations".equals(name) || "RuntimeInvisibleAnnotations".equals(name)) {
+					int annotationCount = in.readUnsignedShort();
+
+					for (int a = 0; a < annotationCount; a++) {
+						StringBuilder annotation = new StringBuilder(owner).append('@');
+						String type = readAnnotation(annotation);
+						attributes.annotations.add(annotation.toString());
+
+						if (member && type.endsWith("/inline;")) {
+							attributes.inline = true;
+						}
+					}
+				} else if (member && "ConstantValue".equals(name)) {
+					attributes.constantValue = constantValue(in.readUnsignedShort());
+				} else if (member && "Code".equals(name)) {
+					attributes.code = new byte[length];
+					in.readFully(attributes.code);
+				} else {
+					skip(length);
+				}
+			}
+			return attributes;
+		}
+
+		/**
+		 * Appends the annotation to the builder and returns its type descriptor.
+		 */
+		private String readAnnotation(StringBuilder out) throws IOException {
+			String type = utf8(in.readUnsignedShort());
+			addDescriptorReferences(type);
+			out.append(type).append('(');
+
+			int pairs = in.readUnsignedShort();
+			for (int i = 0; i < pairs; i++) {
+				out.append(utf8(in.readUnsignedShort())).append('=');
+				readElementValue(out);
+				out.append(',');
+			}
+			out.append(')');
+			return type;
+		}
+
+		private void readElementValue(StringBuilder out) throws IOException {
+			int tag = in.readUnsignedByte();
+			out.append((char) tag);
+
+			switch (tag) {
+			case 'e':
+				String type = utf8(in.readUnsignedShort());
+				addDescriptorReferences(type);
+				out.append(type).append('.').append(utf8(in.readUnsignedShort()));
+				break;
+			case 'c':
+				String descriptor = utf8(in.readUnsignedShort());
+				addDescriptorReferences(descriptor);
+				out.append(descriptor);
+				break;
+			case '@':
+				readAnnotation(out);
+				break;
+			case '[':
+				int count = in.readUnsignedShort();
+				out.append('{');
+				for (int i = 0; i < count; i++) {
+					readElementValue(out);
+					out.append(',');
+				}
+				out.append('}');
+				break;
+			default:
+				out.append(constantValue(in.readUnsignedShort()));
+				break;
+			}
+		}
+
+		private void skip(int length) throws IOException {
+			while (length > 0) {
+				length -= in.skipBytes(length);
+			}
+		}
+
+		private String utf8(int index) {
+			return (String) constants[index];
+		}
+
+		private String className(int index) {
+			return utf8((Integer) constants[index]);
+		}
+
+		private Object constantValue(int index) {
+			if (tags[index] == CONSTANT_STRING) {
+				return '"' + utf8((Integer) constants[index]) + '"';
+			}
+			return constants[index];
+		}
+
+		private void addClassReference(String name) {
+			if (name.startsWith("[")) {
+				addDescriptorReferences(name);
+			} else {
+				references.add(name);
+			}
+		}
+
+		private void addDescriptorReferences(String descriptor) {
+			int start = descriptor.indexOf('L');
+
+			while (start != -1) {
+				int end = descriptor.indexOf(';', start);
+
+				if (end == -1) {
+					return;
+				}
+				references.add(descriptor.substring(start + 1, end));
+				start = descriptor.indexOf('L', end);
+			}
+		}
+
+		private static long hash(List<String> abi) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("MD5");
+
+				for (String line : abi) {
+					digest.update(line.getBytes("UTF-8"));
+					digest.update((byte) '\n');
+				}
+
+				byte[] bytes = digest.digest();
+				long hash = 0;
+				for (int i = 0; i < 8; i++) {
+					hash = (hash << 8) | (bytes[i] & 0xFF);
+				}
+				return hash;
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static class Attributes {
+		private final List<String> annotations = new ArrayList<String>();
+		private Object constantValue;
+		private byte[] code;
+		private boolean inline;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+/**
+ * Receives the phases of a {@link KotlinJvmCompilation} and tells it when to stop.
+ *
+ * The compilation is only stopped between phases, a canceled compilation throws a
+ * {@link java.util.concurrent.CancellationException} and doesn't write any classes.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public interface CompilationProgress {
+
+	CompilationProgress NONE = new CompilationProgress() {
+		@Override
+		public void beginPhase(String name) {
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return false;
+		}
+	};
+
+	void beginPhase(String name);
+
+	boolean isCanceled();
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import static org.jetbrains.jet.cli.jvm.JVMConfigurationKeys.ANNOTATIONS_PATH_KEY;
+import static org.jetbrains.jet.cli.jvm.JVMConfigurationKeys.CLASSPATH_KEY;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jetbrains.jet.buildtools.core.BytecodeCompiler;
+import org.jetbrains.jet.cli.common.CLIConfigurationKeys;
+import org.jetbrains.jet.cli.common.CompilerPlugin;
+import org.jetbrains.jet.cli.common.messages.MessageCollector;
+import org.jetbrains.jet.cli.jvm.compiler.JetCoreEnvironment;
+import org.jetbrains.jet.config.CommonConfigurationKeys;
+import org.jetbrains.jet.config.CompilerConfiguration;
+import org.jetbrains.jet.utils.KotlinPaths;
+import org.jetbrains.jet.utils.KotlinPathsFromHomeDir;
+import org.jetbrains.jet.utils.PathUtil;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+
+/**
+ * Keeps the compiler setup of Kotlin projects alive between builds.
+ *
+ * The Kotlin home, rt.jar, the jdk annotations and the compiler plugins never change
+ * while the IDE is running so they are resolved only once. An entry holds the
+ * classpath roots, keyed by the stdlib and classpath, the sizes and modification times
+ * of its jars and the parent disposable of the environments created from it. Projects
+ * with the same libraries share one entry, which counts the projects using it and is
+ * disposed when the last one moved to another classpath or was invalidated. An entry is
+ * created again when the size or modification time of one of its jars changed, so a
+ * jar replaced at the same path is picked up. Entries are evicted in least recently used
+ * order, an evicted entry is disposed and its projects get a new one on their next
+ * compilation.
+ *
+ * The {@link JetCoreEnvironment} itself is not cached, every compilation creates
+ * one from its entry. This compiler fixes the source roots of an environment when it
+ * is created and keeps the analysis of those sources in it, it has no way to change
+ * the sources or to forget the analysis. A cached environment would compile the
+ * sources of the previous build.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class CompilerEnvironmentCache {
+
+	private static final int MAX_ENTRIES = 16;
+
+	private static final CompilerEnvironmentCache INSTANCE = new CompilerEnvironmentCache();
+
+	private List<File> defaultRoots;
+	private File jdkAnnotationsPath;
+	private Collection<CompilerPlugin> compilerPlugins;
+
+	/**
+	 * The entries by their key.
+	 */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if (size() > MAX_ENTRIES) {
+				Entry entry = eldest.getValue();
+				projectKeys.values().removeAll(Collections.singleton(entry.key));
+				entry.dispose();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * The key of the entry every project uses.
+	 */
+	private final Map<String, String> projectKeys = new HashMap<String, String>();
+
+	public static CompilerEnvironmentCache getDefault() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the entry for the stdlib and classpath of a project, shared with the other
+	 * projects with the same libraries. When the project used an entry for another
+	 * classpath before, it is released from that entry.
+	 */
+	public synchronized Entry get(String projectName, String stdlib, String[] classpath) {
+		String key = createKey(stdlib, classpath);
+
+		if (!key.equals(projectKeys.get(projectName))) {
+			release(projectName);
+		}
+
+		Entry entry = entries.get(key);
+
+		if (entry != null && entry.hasChangedLibraries()) {
+			// The projects sharing the entry move to the new entry on their next compilation.
+			entries.remove(key);
+			entry.dispose();
+			entry = null;
+		}
+
+		if (entry == null) {
+			entry = new Entry(key, createClasspathRoots(stdlib, classpath));
+			entries.put(key, entry);
+		}
+
+		entry.projects.add(projectName);
+		projectKeys.put(projectName, key);
+		return entry;
+	}
+
+	/**
+	 * Releases a project from its entry. The entry is disposed when no other project uses it.
+	 */
+	public synchronized void invalidate(String projectName) {
+		release(projectName);
+	}
+
+	public synchronized void dispose() {
+		for (Entry entry : entries.values()) {
+			entry.dispose();
+		}
+		entries.clear();
+		projectKeys.clear();
+	}
+
+	private void release(String projectName) {
+		String key = projectKeys.remove(projectName);
+		Entry entry = key != null ? entries.get(key) : null;
+
+		if (entry != null) {
+			entry.projects.remove(projectName);
+
+			if (entry.projects.isEmpty()) {
+				entries.remove(key);
+				entry.dispose();
+			}
+		}
+	}
+
+	private static String createKey(String stdlib, String[] classpath) {
+		StringBuilder key = new StringBuilder();
+		key.append(stdlib);
+
+		if (classpath != null) {
+			for (String path : classpath) {
+				key.append(File.pathSeparatorChar).append(path);
+			}
+		}
+		return key.toString();
+	}
+
+	private List<File> createClasspathRoots(String stdlib, String[] classpath) {
+		List<File> roots = new ArrayList<File>();
+
+		if ((stdlib != null) && (stdlib.trim().length() > 0)) {
+			roots.add(PathUtil.findRtJar());
+			roots.add(new File(stdlib));
+		} else {
+			roots.addAll(getDefaultRoots());
+		}
+
+		if ((classpath != null) && (classpath.length > 0)) {
+			for (String path : classpath) {
+				roots.add(new File(path));
+			}
+		}
+		return Collections.unmodifiableList(roots);
+	}
+
+	private synchronized List<File> getDefaultRoots() {
+		if (defaultRoots == null) {
+			KotlinPaths paths = getKotlinPathsForAntTask();
+			List<File> roots = new ArrayList<File>();
+			roots.add(PathUtil.findRtJar());
+
+			File path = paths.getRuntimePath();
+			if (path.exists()) {
+				roots.add(path);
+			}
+
+			File annotationsPath = paths.getJdkAnnotationsPath();
+			if (annotationsPath.exists()) {
+				jdkAnnotationsPath = annotationsPath;
+			}
+			defaultRoots = roots;
+		}
+		return defaultRoots;
+	}
+
+	private synchronized File getJdkAnnotationsPath() {
+		getDefaultRoots();
+		return jdkAnnotationsPath;
+	}
+
+	private synchronized Collection<CompilerPlugin> getCompilerPlugins() {
+		if (compilerPlugins == null) {
+			compilerPlugins = new BytecodeCompiler().getCompilerPlugins();
+		}
+		return compilerPlugins;
+	}
+
+	private static KotlinPaths getKotlinPathsForAntTask() {
+		return new KotlinPathsFromHomeDir(PathUtil.getJarPathForClass(BytecodeCompiler.class).getParentFile().getParentFile());
+	}
+
+	public class Entry {
+
+		private final String key;
+		private final List<File> classpathRoots;
+		private final long[] lengths;
+		private final long[] lastModified;
+		private final Disposable rootDisposable = Disposer.newDisposable();
+
+		/**
+		 * The names of the projects using this entry.
+		 */
+		private final Set<String> projects = new HashSet<String>();
+
+		private Entry(String key, List<File> classpathRoots) {
+			this.key = key;
+			this.classpathRoots = classpathRoots;
+			this.lengths = new long[classpathRoots.size()];
+			this.lastModified = new long[classpathRoots.size()];
+
+			for (int i = 0; i < lengths.length; i++) {
+				File root = classpathRoots.get(i);
+				lengths[i] = root.length();
+				lastModified[i] = root.lastModified();
+			}
+		}
+
+		/**
+		 * Returns true if a jar on the classpath has another size or modification time than
+		 * when this entry was created. Folders are read by every compilation and aren't checked.
+		 */
+		private boolean hasChangedLibraries() {
+			for (int i = 0; i < lengths.length; i++) {
+				File root = classpathRoots.get(i);
+
+				if (root.isFile() && (root.length() != lengths[i] || root.lastModified() != lastModified[i])) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns a new disposable for a single compilation. It is disposed together
+		 * with this entry when the entry is evicted.
+		 */
+		public Disposable newDisposable() {
+			Disposable disposable = Disposer.newDisposable();
+			Disposer.register(rootDisposable, disposable);
+			return disposable;
+		}
+
+		public JetCoreEnvironment createEnvironment(Disposable disposable, String[] sourceRoots, MessageCollector messageCollector) {
+			CompilerConfiguration configuration = new CompilerConfiguration();
+			configuration.addAll(CLASSPATH_KEY, classpathRoots);
+
+			File annotationsPath = getJdkAnnotationsPath();
+			if (annotationsPath != null) {
+				configuration.add(ANNOTATIONS_PATH_KEY, annotationsPath);
+			}
+
+			configuration.addAll(CommonConfigurationKeys.SOURCE_ROOTS_KEY, Arrays.asList(sourceRoots));
+			configuration.put(CLIConfigurationKeys.MESSAGE_COLLECTOR_KEY, messageCollector);
+
+			// lets register any compiler plugins
+			configuration.addAll(CLIConfigurationKeys.COMPILER_PLUGINS, getCompilerPlugins());
+
+			return new JetCoreEnvironment(disposable, configuration);
+		}
+
+		private void dispose() {
+			Disposer.dispose(rootDisposable);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageLocation;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageSeverity;
+import org.jetbrains.jet.cli.common.messages.MessageCollector;
+import org.platonos.eclipse.kotlin.KotlinPreferences;
+import org.platonos.eclipse.kotlin.daemon.KotlinDaemonClient;
+
+/**
+ * Compiles a small throwaway source after the plug-in started, so the first build of
+ * a Kotlin project finds the compiler classes loaded, the compiler plugins discovered
+ * and the analysis compiled by the JIT.
+ *
+ * The warm-up compiles where the builds compile: in a compile daemon, which is then
+ * kept for the first build, or inside the IDE. It only runs when the workspace has an
+ * open Kotlin project and it doesn't show in the progress view.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class CompilerWarmUp extends Job {
+
+	/**
+	 * The name the compiler setup of the warm-up is cached under, it can't clash with a project.
+	 */
+	private static final String PROJECT_NAME = "/warmUp"; //$NON-NLS-1$
+
+	private static final String SOURCE = "package warmup\n\nfun main(args: Array<String>) {\n    println(\"Kotlin\")\n}\n"; //$NON-NLS-1$
+
+	private static final MessageCollector IGNORE_MESSAGES = new MessageCollector() {
+		@Override
+		public void report(@NotNull CompilerMessageSeverity severity, @NotNull String message,
+				@NotNull CompilerMessageLocation location) {
+		}
+	};
+
+	private CompilerWarmUp() {
+		super("Warming up the Kotlin compiler");
+		setSystem(true);
+		setPriority(Job.DECORATE);
+	}
+
+	/**
+	 * Starts the warm-up if it is enabled.
+	 */
+	public static void start() {
+		if (KotlinPreferences.isCompilerWarmUpEnabled()) {
+			new CompilerWarmUp().schedule();
+		}
+	}
+
+	public static void stop() {
+		Job.getJobManager().cancel(CompilerWarmUp.class);
+	}
+
+	@Override
+	protected IStatus run(final IProgressMonitor monitor) {
+		if (!hasKotlinProjects()) {
+			return Status.OK_STATUS;
+		}
+
+		File dir = null;
+
+		try {
+			dir = File.createTempFile("kotlin-warmup", "");
+			dir.delete();
+			File source = new File(dir, "WarmUp.kt");
+			FileSupport.write(source, SOURCE.getBytes("UTF-8"));
+
+			String[] sourcePaths = { source.getAbsolutePath() };
+			File outputDir = new File(dir, "classes");
+			CompilationProgress progress = new CompilationProgress() {
+				@Override
+				public void beginPhase(String name) {
+				}
+
+				@Override
+				public boolean isCanceled() {
+					return monitor.isCanceled();
+				}
+			};
+
+			if (KotlinPreferences.isCompileDaemonUsed()) {
+				KotlinDaemonClient.getDefault().compile(PROJECT_NAME, null, sourcePaths, new String[0], outputDir,
+						IGNORE_MESSAGES, progress);
+			} else {
+				KotlinJvmCompilation compilation = new KotlinJvmCompilation(PROJECT_NAME, null, sourcePaths, new String[0],
+						outputDir, IGNORE_MESSAGES);
+				compilation.setProgress(progress);
+				compilation.run();
+				CompilerEnvironmentCache.getDefault().invalidate(PROJECT_NAME);
+			}
+			return Status.OK_STATUS;
+		} catch (CancellationException e) {
+			return Status.CANCEL_STATUS;
+		} catch (IOException e) {
+			// The first build starts the compiler as it did without the warm-up.
+			return Status.OK_STATUS;
+		} finally {
+			if (dir != null) {
+				FileSupport.delete(dir);
+			}
+		}
+	}
+
+	@Override
+	public boolean belongsTo(Object family) {
+		return family == CompilerWarmUp.class;
+	}
+
+	private static boolean hasKotlinProjects() {
+		for (IProject project : ResourcesPlugin.getWorkspace().getRoot().getProjects()) {
+			try {
+				if (project.isOpen() && project.hasNature(KotlinNature.NATURE_ID)) {
+					return true;
+				}
+			} catch (CoreException e) {
+				// A project whose description can't be read isn't built either.
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which classes each Kotlin source of a project refers to and the ABI hash of every
+ * class generated by the project.
+ *
+ * The graph is filled from the compiled class files. When the ABI of a class changes
+ * the sources that refer to it must be compiled again.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class DependencyGraph {
+
+	private static final int MAGIC = 0x4B544447; // KTDG
+
+	private static final int VERSION = 1;
+
+	private static final int MAP_ENTRY_SIZE = 40;
+
+	private static final int SET_SIZE = 64;
+
+	private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+	private final Map<String, Long> abiHashes = new HashMap<String, Long>();
+
+	private boolean dirty = false;
+
+	/**
+	 * Replaces the classes a source refers to.
+	 */
+	public synchronized void setReferences(String source, Set<String> classNames) {
+		removeSource(source);
+		references.put(source, new HashSet<String>(classNames));
+
+		for (String className : classNames) {
+			Set<String> sources = dependents.get(className);
+
+			if (sources == null) {
+				sources = new HashSet<String>();
+				dependents.put(className, sources);
+			}
+			sources.add(source);
+		}
+		dirty = true;
+	}
+
+	public synchronized void removeSource(String source) {
+		Set<String> classNames = references.remove(source);
+
+		if (classNames == null) {
+			return;
+		}
+
+		for (String className : classNames) {
+			Set<String> sources = dependents.get(className);
+
+			if (sources != null) {
+				sources.remove(source);
+
+				if (sources.isEmpty()) {
+					dependents.remove(className);
+				}
+			}
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Stores the ABI hash of a class.
+	 *
+	 * @return true if the class is new or its ABI differs from the stored one.
+	 */
+	public synchronized boolean updateAbi(String className, long abiHash) {
+		Long previous = abiHashes.put(className, abiHash);
+
+		if (previous != null && previous.longValue() == abiHash) {
+			return false;
+		}
+		dirty = true;
+		return true;
+	}
+
+	public synchronized void removeClass(String className) {
+		if (abiHashes.remove(className) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Returns a copy of the classes each of the sources refers to. Sources without known
+	 * references are left out.
+	 */
+	public synchronized Map<String, Set<String>> getReferences(Collection<String> sources) {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+
+		for (String source : sources) {
+			Set<String> classNames = references.get(source);
+
+			if (classNames != null) {
+				result.put(source, new HashSet<String>(classNames));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the sources which refer to one of the classes.
+	 */
+	public synchronized Set<String> getDependents(Collection<String> classNames) {
+		Set<String> result = new HashSet<String>();
+
+		for (String className : classNames) {
+			Set<String> sources = dependents.get(className);
+
+			if (sources != null) {
+				result.addAll(sources);
+			}
+		}
+		return result;
+	}
+
+	public synchronized void clear() {
+		references.clear();
+		dependents.clear();
+		abiHashes.clear();
+		dirty = true;
+	}
+
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Returns an estimate of the heap used by the graph in bytes. Names are counted once
+	 * per map they are a key of, the sets refer to the same strings.
+	 */
+	public synchronized long estimateSize() {
+		long bytes = 0;
+
+		for (Map.Entry<String, Set<String>> entry : references.entrySet()) {
+			bytes += MAP_ENTRY_SIZE + PathTable.estimateSize(entry.getKey()) + SET_SIZE + MAP_ENTRY_SIZE * entry.getValue().size();
+		}
+
+		for (Map.Entry<String, Set<String>> entry : dependents.entrySet()) {
+			bytes += MAP_ENTRY_SIZE + PathTable.estimateSize(entry.getKey()) + SET_SIZE + MAP_ENTRY_SIZE * entry.getValue().size();
+		}
+
+		for (String className : abiHashes.keySet()) {
+			bytes += MAP_ENTRY_SIZE + PathTable.estimateSize(className) + 16;
+		}
+		return bytes;
+	}
+
+	public synchronized void load(File file) throws IOException {
+		references.clear();
+		dependents.clear();
+		abiHashes.clear();
+		dirty = false;
+
+		if (!file.exists()) {
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return;
+			}
+
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = in.readUTF();
+			}
+
+			int classCount = in.readInt();
+			for (int i = 0; i < classCount; i++) {
+				abiHashes.put(names[in.readInt()], in.readLong());
+			}
+
+			int sourceCount = in.readInt();
+			for (int i = 0; i < sourceCount; i++) {
+				String source = names[in.readInt()];
+				int referenceCount = in.readInt();
+				Set<String> classNames = new HashSet<String>(referenceCount);
+
+				for (int r = 0; r < referenceCount; r++) {
+					classNames.add(names[in.readInt()]);
+				}
+				setReferences(source, classNames);
+			}
+			dirty = false;
+		} finally {
+			in.close();
+		}
+	}
+
+	public synchronized void save(File file) throws IOException {
+		Map<String, Integer> indexes = new HashMap<String, Integer>();
+		List<String> names = new ArrayList<String>();
+
+		for (String className : abiHashes.keySet()) {
+			index(className, indexes, names);
+		}
+
+		for (Map.Entry<String, Set<String>> entry : references.entrySet()) {
+			index(entry.getKey(), indexes, names);
+			for (String className : entry.getValue()) {
+				index(className, indexes, names);
+			}
+		}
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(names.size());
+			for (String name : names) {
+				out.writeUTF(name);
+			}
+
+			out.writeInt(abiHashes.size());
+			for (Map.Entry<String, Long> entry : abiHashes.entrySet()) {
+				out.writeInt(indexes.get(entry.getKey()));
+				out.writeLong(entry.getValue());
+			}
+
+			out.writeInt(references.size());
+			for (Map.Entry<String, Set<String>> entry : references.entrySet()) {
+				out.writeInt(indexes.get(entry.getKey()));
+				out.writeInt(entry.getValue().size());
+				for (String className : entry.getValue()) {
+					out.writeInt(indexes.get(className));
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Failed to replace " + file);
+		}
+
+		if (!tempFile.renameTo(file)) {
+			throw new IOException("Failed to write " + file);
+		}
+		dirty = false;
+	}
+
+	private static void index(String name, Map<String, Integer> indexes, List<String> names) {
+		if (!indexes.containsKey(name)) {
+			indexes.put(name, names.size());
+			names.add(name);
+		}
+	}
+}
@@ -15,11 +15,18 @@
  */
 package org.platonos.eclipse.kotlin.builder;
 
+import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jet.cli.common.messages.CompilerMessageLocation;
 import org.jetbrains.jet.cli.common.messages.CompilerMessageSeverity;
@@ -32,12 +39,57 @@ import org.jetbrains.jet.cli.common.messages.OutputMessageUtil.Output;
  */
 public class EclipseMessageCollector implements MessageCollector {
 
+	/**
+	 * The builder the outputs and problems of a compilation go to, null for an analysis.
+	 */
 	private final KotlinBuilder kotlinBuilder;
-	private final List<IResource> kotlinResources;
+	
+	private final IProject project;
+	
+	/**
+	 * The publisher the problems of an analysis go to, null for a compilation.
+	 */
+	private final MarkerPublisher markerPublisher;
+	
+	/**
+	 * The compiled files by location. Files outside the compiled set are looked up in the
+	 * project when a message refers to them.
+	 */
+	private final FileLocationIndex files;
+	
+	private final Set<File> compiledSources = new HashSet<File>();
+	
+	private IProgressMonitor monitor = new NullProgressMonitor();
 	
 	public EclipseMessageCollector(KotlinBuilder kotlinBuilder, List<IResource> kotlinResources) {
+		this(kotlinBuilder, kotlinBuilder.getProject(), null, kotlinResources);
+	}
+	
+	/**
+	 * Creates a collector for an analysis outside the build, which adds the problems to the marker publisher.
+	 */
+	public EclipseMessageCollector(IProject project, MarkerPublisher markerPublisher, List<IResource> kotlinResources) {
+		this(null, project, markerPublisher, kotlinResources);
+	}
+	
+	private EclipseMessageCollector(KotlinBuilder kotlinBuilder, IProject project, MarkerPublisher markerPublisher,
+			List<IResource> kotlinResources) {
 		this.kotlinBuilder = kotlinBuilder;
-		this.kotlinResources = kotlinResources;
+		this.project = project;
+		this.markerPublisher = markerPublisher;
+		this.files = new FileLocationIndex(kotlinResources, new FileLocationIndex.Resolver() {
+			@Override
+			public IFile resolve(String path) {
+				return findProjectFile(path);
+			}
+		});
+	}
+	
+	/**
+	 * Sets the monitor which gets one unit of work for every source the compiler generated classes for.
+	 */
+	public void setProgressMonitor(IProgressMonitor monitor) {
+		this.monitor = monitor;
 	}
 	
 	@Override
@@ -45,17 +97,38 @@ public class EclipseMessageCollector implements MessageCollector {
 			@NotNull String message, @NotNull CompilerMessageLocation location) {
 		
 		if (severity == CompilerMessageSeverity.OUTPUT) {
+			if (kotlinBuilder == null) {
+				return;
+			}
+			
 			Output output = OutputMessageUtil.parseOutputMessage(message);
 			kotlinBuilder.reportOutput(output);			
+			
+			for (File sourceFile : output.sourceFiles) {
+				if (compiledSources.add(sourceFile)) {
+					monitor.worked(1);
+				}
+			}
 		} else {		
 			IFile file = findFile(location);
 			
 			if (file != null) {		
-				kotlinBuilder.addMarker(file, message, location.getLine(), convert(severity));
+				addMarker(file, message, location.getLine(), convert(severity));
+			} else if (location.getPath() == null && isError(severity)) {
+				// Errors without a location, like a crash of the compiler, are reported on the project.
+				addMarker(project, message, location.getLine(), convert(severity));
 			}
 		}
 	}
 	
+	private void addMarker(IResource resource, String message, int lineNumber, int severity) {
+		if (markerPublisher != null) {
+			markerPublisher.addProblem(resource, message, lineNumber, severity);
+		} else {
+			kotlinBuilder.addMarker(resource, message, lineNumber, severity);
+		}
+	}
+	
 	private int convert(CompilerMessageSeverity severity) {
 		switch (severity) {
 			case INFO : 
@@ -73,17 +146,27 @@ public class EclipseMessageCollector implements MessageCollector {
 		}
 	}
 	
+	private boolean isError(CompilerMessageSeverity severity) {
+		return severity == CompilerMessageSeverity.ERROR || severity == CompilerMessageSeverity.EXCEPTION;
+	}
+	
 	private IFile findFile(CompilerMessageLocation location) {
 		String path = location.getPath();
+		return path != null ? files.find(path) : null;
+	}
+	
+	/**
+	 * Returns the file of the built project at the location. Files of other projects are
+	 * outside the scheduling rule of the build, so they don't get markers.
+	 */
+	private IFile findProjectFile(String path) {
+		IFile[] found = ResourcesPlugin.getWorkspace().getRoot().findFilesForLocationURI(new File(path).toURI());
 		
-		for (IResource resource : kotlinResources) {
-			String abso = resource.getLocation().toFile().getAbsolutePath();
-			
-			if (abso.equals(path)) {
-				return (IFile) resource;
-			}			
-		}		
-		
+		for (IFile file : found) {
+			if (file.isAccessible() && file.getProject().equals(project)) {
+				return file;
+			}
+		}
 		return null;
 	}
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * The files of a compilation by their location in the file system, to find the file a
+ * compiler message is about.
+ *
+ * Locations are compared with '/' as separator and, on a case insensitive file system,
+ * in lower case. A location that isn't indexed is resolved once, the result is kept,
+ * also when the location isn't a file of the workspace.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+class FileLocationIndex {
+
+	private static final boolean CASE_INSENSITIVE = new File("a").equals(new File("A"));
+
+	/**
+	 * Finds the file of a location that isn't indexed.
+	 */
+	interface Resolver {
+		IFile resolve(String path);
+	}
+
+	/**
+	 * The files by normalized location, null values cache locations that aren't in the workspace.
+	 */
+	private final Map<String, IFile> files = new HashMap<String, IFile>();
+
+	private final Resolver resolver;
+
+	FileLocationIndex(List<IResource> resources, Resolver resolver) {
+		this.resolver = resolver;
+
+		for (IResource resource : resources) {
+			IPath location = resource.getLocation();
+
+			if (resource instanceof IFile && location != null) {
+				files.put(normalize(location.toOSString()), (IFile) resource);
+			}
+		}
+	}
+
+	/**
+	 * Returns the file at the location, or null if there is none.
+	 */
+	IFile find(String path) {
+		String key = normalize(path);
+		IFile file = files.get(key);
+
+		if (file == null && !files.containsKey(key)) {
+			file = resolver.resolve(path);
+			files.put(key, file);
+		}
+		return file;
+	}
+
+	static String normalize(String path) {
+		String normalized = path.replace('\\', '/');
+
+		if (CASE_INSENSITIVE) {
+			normalized = normalized.toLowerCase(Locale.ENGLISH);
+		}
+		return normalized;
+	}
+}
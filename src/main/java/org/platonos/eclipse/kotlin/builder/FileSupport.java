@@ -0,0 +1,100 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The file operations of the builder, the compilations and the build cache.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+final class FileSupport {
+
+	private static final String TEMP_EXT = ".tmp"; //$NON-NLS-1$
+
+	private FileSupport() {
+	}
+
+	/**
+	 * Writes the content to a file, creating its folder when needed.
+	 */
+	static void write(File file, byte[] content) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the content to a temporary file next to the target and renames it to the
+	 * target, so a reader never sees a partially written file.
+	 */
+	static void replace(File target, byte[] content) throws IOException {
+		File temp = new File(target.getParentFile(), target.getName() + TEMP_EXT);
+		write(temp, content);
+
+		// Renaming doesn't replace an existing file on every platform.
+		if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target))) {
+			temp.delete();
+			throw new IOException("Failed to replace " + target);
+		}
+	}
+
+	static void copy(File from, File to) throws IOException {
+		to.getParentFile().mkdirs();
+		InputStream in = new FileInputStream(from);
+
+		try {
+			OutputStream out = new FileOutputStream(to);
+
+			try {
+				byte[] buffer = new byte[65536];
+				int read;
+
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Deletes a file, or a folder with everything in it.
+	 */
+	static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -16,29 +16,37 @@
 package org.platonos.eclipse.kotlin.builder;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.core.resources.IFile;
-import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
 import org.eclipse.core.resources.IResourceVisitor;
+import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaModelException;
 import org.jetbrains.jet.cli.common.messages.OutputMessageUtil.Output;
-
-import com.intellij.util.containers.HashMap;
+import org.platonos.eclipse.kotlin.KotlinPreferences;
 
 /**
  * @author Evert Tigchelaar (everttigchelaar@gmail.com)
@@ -47,77 +55,62 @@ public class KotlinBuilder extends IncrementalProjectBuilder {
 
 	private KotlinProject kotlinProject;
 	
-	private List<IResource> classes = new ArrayList<IResource>();
+	private SourceMappingStore sourceMapping;
+	
+	private DependencyGraph dependencyGraph;
+	
+	private MarkerPublisher markerPublisher;
+	
+	private BuildMetrics metrics;
+	
+	/**
+	 * The sources to compile before the others, the sources open in an editor for a background compilation.
+	 */
+	private Set<IPath> priorityFiles = Collections.emptySet();
 	
-	private Map<String, List<String>> sourceMapping = new HashMap<String, List<String>>();
+	/**
+	 * True while a canceled build can be repeated with the same delta, that is until
+	 * removed sources or compiled classes changed the dependency graph.
+	 */
+	private boolean repeatable;
+	
+	/**
+	 * The paths of the sources whose last compilation failed. They may refer to a class
+	 * no source had yet, so every incremental build compiles them again until they compile.
+	 */
+	private final Set<String> failedSources = new HashSet<String>();
+	
+	/**
+	 * The references of the sources before a full build cleared the dependency graph,
+	 * null for an incremental build. They partition the sources of a parallel compilation.
+	 */
+	private Map<String, Set<String>> previousReferences;
 	
-	private static final String KOTLIN_EXT = "kt";
+	private static final String CLASS_EXT = ".class";
 	
 	@Override
 	protected void startupOnInitialize() {
 		super.startupOnInitialize();
 		try {
 			kotlinProject = KotlinProject.create(getProject());
+			sourceMapping = SourceMappingManager.getDefault().getStore(getProject());
+			dependencyGraph = SourceMappingManager.getDefault().getDependencyGraph(getProject());
 			cleanKotlinMarkers();
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}	
 	
-	class KotlinDeltaVisitor implements IResourceDeltaVisitor {
-		
-		private List<IResource> kotlinResources = new ArrayList<IResource>();
-		
-		private List<IResource> removedResources = new ArrayList<IResource>();
-		
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see org.eclipse.core.resources.IResourceDeltaVisitor#visit(org.eclipse.core.resources.IResourceDelta)
-		 */
-		public boolean visit(IResourceDelta delta) throws CoreException {
-			IResource resource = delta.getResource();
-						
-			switch (delta.getKind()) {
-			case IResourceDelta.REMOVED:
-				if (checkKotlin(resource)) {
-					deleteClasses(resource);
-					removedResources.add(resource);
-				}				
-				break;
-			case IResourceDelta.ADDED: { 
-				checkAdded(resource, kotlinResources);
-				if (isKotlinSource(resource)) {
-					return false;
-				}
-				break;
-			}
-			case IResourceDelta.CHANGED:
-				checkChanged(resource, kotlinResources);
-				if (checkKotlin(resource)) {
-					return false;
-				}
-				break;
-			}
-			//return true to continue visiting children.
-			return true;
-		}
-		
-		public List<IResource> getKotlinResources() {
-			return kotlinResources;
-		}
-		
-		public List<IResource> getRemovedResources() {
-			return removedResources;
-		}
-	}
-
 	class KotlinResourceVisitor implements IResourceVisitor {
 		
 		private List<IResource> kotlinResources = new ArrayList<IResource>();
 		
 		public boolean visit(IResource resource) {
-			if (checkKotlin(resource)) {			
+			if (isSkippedFolder(resource)) {
+				return false;
+			}
+			
+			if (isKotlinSource(resource)) {			
 				kotlinResources.add(resource);
 			}
 			//return true to continue visiting children.			
@@ -132,20 +125,23 @@ public class KotlinBuilder extends IncrementalProjectBuilder {
 
 	public static final String BUILDER_ID = "EclipseKotlin.kotlinBuilder";
 
-	private static final String MARKER_TYPE = "EclipseKotlin.kotlinProblem";
+	static final String MARKER_TYPE = "EclipseKotlin.kotlinProblem";
 
-	void addMarker(IFile file, String message, int lineNumber,
+	void addMarker(IResource file, String message, int lineNumber,
 			int severity) {
-		try {
-			IMarker marker = file.createMarker(MARKER_TYPE);
-			marker.setAttribute(IMarker.MESSAGE, message);
-			marker.setAttribute(IMarker.SEVERITY, severity);
-			if (lineNumber == -1) {
-				lineNumber = 1;
-			}
-			marker.setAttribute(IMarker.LINE_NUMBER, lineNumber);
-		} catch (CoreException e) {
-		}
+		markerPublisher.addProblem(file, message, lineNumber, severity);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.eclipse.core.resources.IncrementalProjectBuilder#getRule(int, java.util.Map)
+	 */
+	@Override
+	public ISchedulingRule getRule(int kind, Map<String, String> args) {
+		// Only the output folder and the markers of the own project are changed, so other
+		// projects, refreshes and edits elsewhere can go on while Kotlin is compiled.
+		return getProject();
 	}
 
 	/*
@@ -156,81 +152,104 @@ public class KotlinBuilder extends IncrementalProjectBuilder {
 	 */
 	protected IProject[] build(int kind, Map<String, String> args, IProgressMonitor monitor)
 			throws CoreException {
-		if (kind == FULL_BUILD) {
-			fullBuild(monitor);
-		} else {
+		if (kind == AUTO_BUILD && KotlinPreferences.isBackgroundCompileEnabled()) {
+			// The background compiler builds the same changes once the saves stopped.
+			rememberLastBuiltState();
 			IResourceDelta delta = getDelta(getProject());
-			if (delta == null) {
+			
+			// Refreshing the classes the background compiler wrote starts an auto-build too.
+			if (delta == null || !isOutputDelta(delta)) {
+				BackgroundCompiler.getDefault().schedule(getProject());
+				analyzeChanges(delta);
+			}
+			return getProject().getReferencedProjects();
+		}
+		
+		priorityFiles = BackgroundCompiler.getPriorityFiles(args);
+		repeatable = false;
+		previousReferences = null;
+		
+		try {
+			if (kind == FULL_BUILD) {
 				fullBuild(monitor);
 			} else {
-				incrementalBuild(delta, monitor);
+				IResourceDelta delta = getDelta(getProject());
+				if (delta == null) {
+					fullBuild(monitor);
+				} else {
+					incrementalBuild(delta, monitor);
+				}
 			}
+		} catch (OperationCanceledException e) {
+			if (repeatable) {
+				// Nothing changed yet, the next build gets the same delta.
+				rememberLastBuiltState();
+			} else {
+				// Sources may not have been compiled, so the next build must be a full build.
+				forgetLastBuiltState();
+			}
+			throw e;
 		}
+		
+		metrics.finish();
+		BuildStatistics.getDefault().record(metrics);
 		return getProject().getReferencedProjects();
 	}
 	
-	private void checkAdded(IResource resource, List<IResource> changedKotlinResources) {
-		if (resource instanceof IFile && resource.getName().endsWith(".class")) {
-			classes.add(resource);
+	private static void checkCanceled(IProgressMonitor monitor) {
+		if (monitor.isCanceled()) {
+			throw new OperationCanceledException();
 		}
-		checkChanged(resource, changedKotlinResources);
 	}
 	
 	private void checkChanged(IResource resource, List<IResource> changedKotlinResources) {
-		if (checkKotlin(resource)) {
+		if (isKotlinSource(resource)) {
 			changedKotlinResources.add(resource);
 		}
 	}
 	
-	private boolean checkKotlin(IResource resource) {		
-		if (isKotlinSource(resource)) {
-			deleteMarkers(resource);
-			return true;
+	private boolean isKotlinSource(IResource resource) {
+		try {
+			return kotlinProject.isKotlinSource(resource);
+		} catch (JavaModelException e) {
+			return false;
 		}
-		
-		return false;
 	}
 	
-	private boolean isKotlinSource(IResource resource) {
-		if (resource instanceof IFile && resource.getFileExtension().equals(KOTLIN_EXT)) {			
-			try {
-				for (IClasspathEntry entry : kotlinProject.getRawClasspath()) {
-					if (IClasspathEntry.CPE_SOURCE == entry.getEntryKind()) {
-						IPath path = entry.getPath();
-						IPath fullPath = resource.getFullPath();
-						
-						if (path.isPrefixOf(fullPath)) {
-							return true;
-						}
-					}					
-				}
-			} catch (JavaModelException e) {
-			}
-		} 
+	/**
+	 * Returns true for derived and output folders, which can't contain Kotlin sources.
+	 */
+	private boolean isSkippedFolder(IResource resource) {
+		if (resource.getType() != IResource.FOLDER) {
+			return false;
+		}
 		
-		return false;
+		try {
+			return resource.isDerived() || kotlinProject.isOutputFolder(resource.getFullPath());
+		} catch (JavaModelException e) {
+			return false;
+		}
 	}
 	
-	private void deleteClasses(IResource resource) {
-		IPath fullPath = resource.getLocation();
-		
-		List<String> list = sourceMapping.get(fullPath.toString());
+	/**
+	 * Deletes the classes of a removed source and returns them. A class other sources
+	 * contribute to, like a package facade, is kept and its other sources are added to
+	 * the contributors, they must be compiled again to drop the part of the removed source.
+	 */
+	private List<String> deleteClasses(IResource resource, Set<String> contributors) {
+		String sourcePath = getSourcePath(resource);
+		List<String> deleted = KotlinDeltaVisitor.removeSource(sourceMapping, dependencyGraph, sourcePath, contributors);
+		failedSources.remove(sourcePath);
 		
-		if (list != null) {
-			for (Iterator<String> iter = list.iterator(); iter.hasNext();) {
-				String path = iter.next();
-				iter.remove();
-				File f = new File(path);
-				
-				if (f.exists()) {
-					f.delete();
-				}
-			}
+		for (String path : deleted) {
+			File f = new File(path);
 			
-			if (list.isEmpty()) {
-				sourceMapping.remove(fullPath.toString());
+			if (f.exists()) {
+				f.delete();
 			}
 		}
+		refreshOutputs(deleted);
+		return deleted;
 	}
 
 	private void deleteMarkers(IResource res) {		
@@ -242,14 +261,40 @@ public class KotlinBuilder extends IncrementalProjectBuilder {
 
 	protected void fullBuild(final IProgressMonitor monitor)
 			throws CoreException {
+		metrics = new BuildMetrics(getProject().getName(), true);
+		metrics.beginPhase(BuildMetrics.VISITING_RESOURCES);
+		failedSources.clear();
 		KotlinResourceVisitor visitor = new KotlinResourceVisitor();
-		getProject().accept(visitor);
+		
+		for (IPath sourceRoot : getSourceRoots()) {
+			IResource resource = getProject().findMember(sourceRoot);
+			
+			if (resource != null) {
+				resource.accept(visitor);
+			}
+		}
 		
 		List<IResource> resources = visitor.getKotlinResources();		
 		
 		try {
-			monitor.beginTask("Compiling Kotlin sources - FULL", resources.size());		
-			compileSources(resources);
+			SubMonitor progress = SubMonitor.convert(monitor, "Compiling Kotlin sources - FULL", resources.size());		
+			checkCanceled(progress);
+			
+			if (KotlinPreferences.isParallelCompileEnabled()) {
+				previousReferences = dependencyGraph.getReferences(getSourcePaths(resources));
+			}
+			
+			dependencyGraph.clear();
+			String cacheKey = getCacheKey(resources);
+			
+			if (cacheKey == null || !restoreFromCache(cacheKey, resources)) {
+				compileSources(resources, Collections.<String>emptySet(), progress);
+				
+				// Problems aren't cached, so only builds without problems are added.
+				if (cacheKey != null && metrics.getProblemCount() == 0) {
+					addToCache(cacheKey, resources);
+				}
+			}
 		} finally {
 			monitor.done();
 		}
@@ -257,10 +302,215 @@ public class KotlinBuilder extends IncrementalProjectBuilder {
 
 	protected void incrementalBuild(IResourceDelta delta,
 			IProgressMonitor monitor) throws CoreException {
+		SubMonitor progress = SubMonitor.convert(monitor, "Compiling Kotlin sources", 1);
+		metrics = new BuildMetrics(getProject().getName(), false);
+		metrics.beginPhase(BuildMetrics.VISITING_RESOURCES);
+		
 		// the visitor does the work.
-		KotlinDeltaVisitor visitor = new KotlinDeltaVisitor();		
-		delta.accept(visitor);
-		compileSources(visitor.getKotlinResources());
+		KotlinDeltaVisitor visitor = visitSourceDeltas(delta, true);
+		repeatable = visitor.getRemovedOutputs().isEmpty();
+		checkCanceled(progress);
+		
+		String outputDir = getOutputDir().toString();
+		Set<String> removedClasses = new HashSet<String>();
+		
+		for (String output : visitor.getRemovedOutputs()) {
+			String className = getClassName(outputDir, output);
+			dependencyGraph.removeClass(className);
+			removedClasses.add(className);
+		}
+		
+		List<IResource> resources = new ArrayList<IResource>(visitor.getKotlinResources());
+		Set<IResource> compiled = new HashSet<IResource>(resources);
+		resources.addAll(findSources(visitor.getContributors(), compiled));
+		resources.addAll(findSources(new ArrayList<String>(failedSources), compiled));
+		
+		try {
+			compileSources(resources, removedClasses, progress);
+		} finally {
+			monitor.done();
+		}
+	}
+	
+	/**
+	 * Visits the changes in the source folders, the rest of the project can't contain sources.
+	 * 
+	 * @param deleteClasses whether the classes of removed sources are deleted.
+	 */
+	private KotlinDeltaVisitor visitSourceDeltas(IResourceDelta delta, final boolean deleteClasses) throws CoreException {
+		KotlinDeltaVisitor visitor = new KotlinDeltaVisitor() {
+			@Override
+			boolean isKotlinSource(IResource resource) {
+				return KotlinBuilder.this.isKotlinSource(resource);
+			}
+			
+			@Override
+			boolean isSkippedFolder(IResource resource) {
+				return KotlinBuilder.this.isSkippedFolder(resource);
+			}
+			
+			@Override
+			List<String> deleteClasses(IResource resource, Set<String> contributors) {
+				return deleteClasses ? KotlinBuilder.this.deleteClasses(resource, contributors) : Collections.<String>emptyList();
+			}
+		};
+		
+		for (IPath sourceRoot : getSourceRoots()) {
+			IResourceDelta sourceDelta = delta.findMember(sourceRoot);
+			
+			if (sourceDelta != null) {
+				sourceDelta.accept(visitor);
+			}
+		}
+		return visitor;
+	}
+	
+	/**
+	 * Passes the added and changed sources of the delta to the analysis of the background
+	 * compiler, so their problems show while it waits for the saves to stop. Nothing is
+	 * compiled or deleted, the background build gets the same delta.
+	 */
+	private void analyzeChanges(IResourceDelta delta) throws CoreException {
+		if (delta == null) {
+			return;
+		}
+		
+		List<IResource> resources = visitSourceDeltas(delta, false).getKotlinResources();
+		
+		if (!resources.isEmpty()) {
+			BackgroundCompiler.getDefault().analyze(getProject(), resources, kotlinProject.getResolvedClasspath());
+		}
+	}
+	
+	/**
+	 * Returns true if the delta only changes files in the output folders.
+	 */
+	private boolean isOutputDelta(IResourceDelta delta) throws CoreException {
+		final boolean[] otherChanges = new boolean[1];
+		
+		delta.accept(new IResourceDeltaVisitor() {
+			@Override
+			public boolean visit(IResourceDelta child) throws CoreException {
+				IResource resource = child.getResource();
+				
+				if (otherChanges[0] || (resource.getType() == IResource.FOLDER && kotlinProject.isOutputFolder(resource.getFullPath()))) {
+					return false;
+				}
+				
+				if (resource.getType() == IResource.FILE) {
+					otherChanges[0] = true;
+					return false;
+				}
+				return true;
+			}
+		});
+		return !otherChanges[0];
+	}
+	
+	/**
+	 * Returns the source folders of the project, relative to the project.
+	 */
+	private List<IPath> getSourceRoots() throws JavaModelException {
+		List<IPath> sourceRoots = new ArrayList<IPath>();
+		
+		for (IPath sourceRoot : kotlinProject.getSourceRoots()) {
+			if (getProject().getName().equals(sourceRoot.segment(0))) {
+				sourceRoots.add(sourceRoot.removeFirstSegments(1));
+			}
+		}
+		return sourceRoots;
+	}
+	
+	/**
+	 * Returns the key of the sources in the {@link BuildCache}, or null if the cache isn't used.
+	 */
+	private String getCacheKey(List<IResource> resources) throws CoreException {
+		if (resources.isEmpty() || !BuildCache.isEnabled()) {
+			return null;
+		}
+		
+		metrics.beginPhase(BuildMetrics.HASHING_INPUTS);
+		
+		try {
+			return BuildCache.computeKey(getProjectDir(), getSourcePaths(resources), kotlinProject.getResolvedClasspath(),
+					kotlinProject.getOutputLocations(), new KotlinEclipseCompiler().getSettings());
+		} catch (IOException e) {
+			// Inputs that can't be read are compiled, the compiler reports the problem.
+			return null;
+		} finally {
+			metrics.endPhase();
+		}
+	}
+	
+	/**
+	 * Copies the classes of the sources from the build cache instead of compiling them.
+	 * 
+	 * @return false if the cache has no classes for the sources.
+	 */
+	private boolean restoreFromCache(String cacheKey, List<IResource> resources) throws CoreException {
+		String outputDir = getOutputDir().toString();
+		metrics.beginPhase(BuildMetrics.RESTORING_OUTPUTS);
+		Map<String, List<String>> outputs = BuildCache.getDefault().restore(cacheKey, getProjectDir(), outputDir);
+		metrics.endPhase();
+		
+		if (outputs == null) {
+			return false;
+		}
+		
+		Map<String, List<String>> previousOutputs = new HashMap<String, List<String>>();
+		
+		for (IResource resource : resources) {
+			String sourcePath = getSourcePath(resource);
+			previousOutputs.put(sourcePath, sourceMapping.remove(sourcePath));
+			List<String> classes = outputs.get(sourcePath);
+			
+			if (classes != null) {
+				for (String output : classes) {
+					sourceMapping.add(sourcePath, output);
+					metrics.addOutput();
+				}
+			}
+		}
+		
+		repeatable = false;
+		List<String> restored = new ArrayList<String>();
+		
+		for (List<String> classes : outputs.values()) {
+			restored.addAll(classes);
+		}
+		
+		metrics.beginPhase(BuildMetrics.REFRESHING_OUTPUTS);
+		refreshOutputs(restored);
+		metrics.beginPhase(BuildMetrics.UPDATING_DEPENDENCIES);
+		updateDependencies(outputDir, previousOutputs, Collections.<String>emptySet());
+		AnalysisCache.getDefault().invalidate(getProject().getName());
+		
+		// The cached build had no problems, so the markers of the sources are removed.
+		markerPublisher = new MarkerPublisher(MARKER_TYPE);
+		markerPublisher.addScope(getProject());
+		
+		for (IResource resource : resources) {
+			markerPublisher.addScope(resource);
+		}
+		
+		metrics.beginPhase(BuildMetrics.PUBLISHING_MARKERS);
+		markerPublisher.publish(getProject(), null);
+		metrics.endPhase();
+		return true;
+	}
+	
+	private void addToCache(String cacheKey, List<IResource> resources) throws CoreException {
+		Map<String, List<String>> outputs = new HashMap<String, List<String>>();
+		
+		for (IResource resource : resources) {
+			String sourcePath = getSourcePath(resource);
+			outputs.put(sourcePath, sourceMapping.get(sourcePath));
+		}
+		BuildCache.getDefault().store(cacheKey, getProjectDir(), getOutputDir().toString(), outputs);
+	}
+	
+	private String getProjectDir() {
+		return getProject().getLocation().toString();
 	}
 	
 	@Override
@@ -268,6 +518,11 @@ public class KotlinBuilder extends IncrementalProjectBuilder {
 		super.clean(monitor);
 		monitor.beginTask("Clean Kotlin markers", 1);
 		try {
+			CompilerEnvironmentCache.getDefault().invalidate(getProject().getName());
+			AnalysisCache.getDefault().invalidate(getProject().getName());
+			sourceMapping.clear();
+			dependencyGraph.clear();
+			failedSources.clear();
 			cleanKotlinMarkers();
 		} finally {
 			monitor.done();
@@ -286,27 +541,442 @@ public class KotlinBuilder extends IncrementalProjectBuilder {
 		});
 	}
 	
-	private void compileSources(List<IResource> kotlinResources) throws JavaModelException {
+	/**
+	 * Compiles the sources and the sources depending on the given changed classes.
+	 * When the ABI of a compiled class changes the sources that depend on it are
+	 * compiled as well, until no more ABI changes are found. Sources which generate a
+	 * class together, like the sources of a package facade, are always compiled together.
+	 * The priority files are compiled before the other sources, against their previous
+	 * classes, so they are compiled again when the other sources change a class they use.
+	 */
+	private void compileSources(List<IResource> kotlinResources, Set<String> changedClasses, SubMonitor progress) throws CoreException {
+		String outputDir = getOutputDir().toString();
+		Set<IResource> compiled = new HashSet<IResource>(kotlinResources);
+		Set<String> retried = new HashSet<String>();
+		List<IResource> resources = new ArrayList<IResource>(kotlinResources);
+		resources.addAll(findDependents(changedClasses, compiled));
+		
+		while (!resources.isEmpty()) {
+			checkCanceled(progress);
+			resources.addAll(findSources(getContributors(resources), compiled));
+			progress.setWorkRemaining(resources.size());
+			List<List<IResource>> batches = prioritize(resources);
+			List<Set<String>> changedByBatch = new ArrayList<Set<String>>(batches.size());
+			List<Set<String>> failedByBatch = new ArrayList<Set<String>>(batches.size());
+			Set<String> changed = new HashSet<String>();
+			Set<IResource> incomplete = new LinkedHashSet<IResource>();
+			
+			for (List<IResource> batch : batches) {
+				Set<String> failed = new HashSet<String>();
+				Set<String> batchChanged = compileRound(batch, outputDir, progress.newChild(batch.size()), failed);
+				changedByBatch.add(batchChanged);
+				failedByBatch.add(failed);
+				changed.addAll(batchChanged);
+				incomplete.addAll(findIncompleteContributors(batch));
+			}
+			
+			metrics.beginPhase(BuildMetrics.UPDATING_DEPENDENCIES);
+			resources = findDependents(changed, compiled);
+			incomplete.addAll(findStaleSources(batches, changedByBatch, failedByBatch, retried));
+			incomplete.removeAll(resources);
+			resources.addAll(incomplete);
+			metrics.endPhase();
+		}
+	}
+	
+	/**
+	 * Returns the sources of a batch which were compiled against classes a later batch
+	 * changed: the sources that refer to such a class and, once, the sources that
+	 * failed, as they may refer to a class the later batch added.
+	 */
+	private List<IResource> findStaleSources(List<List<IResource>> batches, List<Set<String>> changedByBatch,
+			List<Set<String>> failedByBatch, Set<String> retried) {
+		List<IResource> stale = new ArrayList<IResource>();
+		Set<String> laterChanged = new HashSet<String>();
+		
+		for (int i = batches.size() - 1; i >= 0; i--) {
+			if (!laterChanged.isEmpty()) {
+				Set<String> dependents = dependencyGraph.getDependents(laterChanged);
+				
+				for (IResource resource : batches.get(i)) {
+					String sourcePath = getSourcePath(resource);
+					
+					if (failedByBatch.get(i).contains(sourcePath) ? retried.add(sourcePath) : dependents.contains(sourcePath)) {
+						stale.add(resource);
+					}
+				}
+			}
+			laterChanged.addAll(changedByBatch.get(i));
+		}
+		return stale;
+	}
+	
+	/**
+	 * Compiles the sources and returns the names of the classes whose ABI changed.
+	 * 
+	 * @param failed receives the paths of the sources whose compilation failed.
+	 */
+	private Set<String> compileRound(List<IResource> resources, String outputDir, IProgressMonitor monitor,
+			Set<String> failed) throws CoreException {
+		List<List<IResource>> chunks = partition(resources, outputDir);
+		Map<String, List<String>> previousOutputs = new HashMap<String, List<String>>();
+		
+		for (IResource resource : resources) {
+			String sourcePath = getSourcePath(resource);
+			previousOutputs.put(sourcePath, sourceMapping.remove(sourcePath));
+		}
+		
+		try {
+			failed.addAll(compileSources(resources, chunks, monitor));
+		} catch (OperationCanceledException e) {
+			restoreOutputs(previousOutputs);
+			throw e;
+		}
+		
+		repeatable = false;
+		
+		for (String sourcePath : previousOutputs.keySet()) {
+			if (failed.contains(sourcePath)) {
+				failedSources.add(sourcePath);
+			} else {
+				failedSources.remove(sourcePath);
+			}
+		}
+		
+		metrics.beginPhase(BuildMetrics.UPDATING_DEPENDENCIES);
+		Set<String> changed = updateDependencies(outputDir, previousOutputs, failed);
+		metrics.endPhase();
+		return changed;
+	}
+	
+	/**
+	 * Splits the sources in parts that can be compiled at the same time, when parallel
+	 * compilation is enabled. The classes of the previous build tell which sources
+	 * depend on each other, so this must be done before the outputs are removed.
+	 * 
+	 * @return the parts, or null if the sources are compiled at once.
+	 */
+	private List<List<IResource>> partition(List<IResource> resources, String outputDir) {
+		if (!KotlinPreferences.isParallelCompileEnabled()) {
+			return null;
+		}
+		
+		metrics.beginPhase(BuildMetrics.PARTITIONING_SOURCES);
+		Map<String, IResource> resourcesByPath = new HashMap<String, IResource>();
+		
+		for (IResource resource : resources) {
+			resourcesByPath.put(getSourcePath(resource), resource);
+		}
+		
+		List<String> sourcePaths = getSourcePaths(resources);
+		Map<String, Set<String>> references = previousReferences != null
+				? previousReferences : dependencyGraph.getReferences(sourcePaths);
+		List<List<IResource>> chunks = new ArrayList<List<IResource>>();
+		
+		for (List<String> paths : SourcePartitioner.partition(sourcePaths, references, sourceMapping, outputDir,
+				KotlinPreferences.getParallelBuildThreads())) {
+			List<IResource> chunk = new ArrayList<IResource>(paths.size());
+			
+			for (String path : paths) {
+				chunk.add(resourcesByPath.get(path));
+			}
+			chunks.add(chunk);
+		}
+		
+		metrics.endPhase();
+		return chunks;
+	}
+	
+	/**
+	 * Returns the paths of the sources which generate a class together with one of the
+	 * given sources, including the given sources.
+	 */
+	private Set<String> getContributors(Collection<IResource> resources) {
+		Set<String> contributors = new HashSet<String>();
+		
+		for (IResource resource : resources) {
+			String sourcePath = getSourcePath(resource);
+			contributors.add(sourcePath);
+			
+			for (String output : sourceMapping.get(sourcePath)) {
+				contributors.addAll(sourceMapping.getSources(output));
+			}
+		}
+		return contributors;
+	}
+	
+	/**
+	 * Returns the sources of the classes which the compiled sources generated without
+	 * the other sources of the class, like a package facade shared with a new source.
+	 * These classes miss the part of the other sources, so all their sources are
+	 * compiled again together.
+	 */
+	private List<IResource> findIncompleteContributors(List<IResource> compiledResources) {
+		Set<String> compiledPaths = new HashSet<String>();
+		
+		for (IResource resource : compiledResources) {
+			compiledPaths.add(getSourcePath(resource));
+		}
+		
+		Set<String> contributors = new HashSet<String>();
+		
+		for (String sourcePath : compiledPaths) {
+			for (String output : sourceMapping.get(sourcePath)) {
+				List<String> sources = sourceMapping.getSources(output);
+				
+				if (!compiledPaths.containsAll(sources)) {
+					contributors.addAll(sources);
+				}
+			}
+		}
+		return findSources(contributors, new HashSet<IResource>());
+	}
+	
+	/**
+	 * Splits the sources in the priority files, which are compiled first, and the others.
+	 * Sources generating a class together with a priority file are compiled with it.
+	 */
+	private List<List<IResource>> prioritize(List<IResource> resources) {
+		if (priorityFiles.isEmpty()) {
+			return Collections.singletonList(resources);
+		}
+		
+		List<IResource> first = new ArrayList<IResource>();
+		List<IResource> rest = new ArrayList<IResource>();
+		
+		for (IResource resource : resources) {
+			if (priorityFiles.contains(resource.getFullPath())) {
+				first.add(resource);
+			}
+		}
+		
+		Set<String> firstPaths = getContributors(first);
+		first.clear();
+		
+		for (IResource resource : resources) {
+			if (firstPaths.contains(getSourcePath(resource))) {
+				first.add(resource);
+			} else {
+				rest.add(resource);
+			}
+		}
+		
+		if (first.isEmpty() || rest.isEmpty()) {
+			return Collections.singletonList(resources);
+		}
+		
+		List<List<IResource>> batches = new ArrayList<List<IResource>>(2);
+		batches.add(first);
+		batches.add(rest);
+		return batches;
+	}
+	
+	/**
+	 * Adds the outputs of sources, whose compilation didn't finish, back to the source mapping.
+	 */
+	private void restoreOutputs(Map<String, List<String>> previousOutputs) {
+		for (Map.Entry<String, List<String>> entry : previousOutputs.entrySet()) {
+			for (String output : entry.getValue()) {
+				sourceMapping.add(entry.getKey(), output);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the new outputs of the compiled sources into the dependency graph. The classes
+	 * a compiled source no longer generates are deleted, unless another source still
+	 * generates them.
+	 * 
+	 * @param failed the paths of the sources whose compilation failed, they keep their previous outputs.
+	 * @return the names of the classes whose ABI changed or which are no longer generated.
+	 */
+	private Set<String> updateDependencies(String outputDir, Map<String, List<String>> previousOutputs, Set<String> failed) {
+		Set<String> changed = new HashSet<String>();
+		List<String> deleted = new ArrayList<String>();
+		
+		for (Map.Entry<String, List<String>> entry : previousOutputs.entrySet()) {
+			String sourcePath = entry.getKey();
+			List<String> outputs = sourceMapping.get(sourcePath);
+			
+			if (failed.contains(sourcePath)) {
+				// The compilation failed, the previous outputs are still there.
+				for (String output : entry.getValue()) {
+					sourceMapping.add(sourcePath, output);
+				}
+				continue;
+			}
+			
+			Set<String> references = new HashSet<String>();
+			
+			for (String output : outputs) {
+				try {
+					ClassFileInfo info = ClassFileInfo.read(new File(output));
+					references.addAll(info.getReferences());
+					
+					if (dependencyGraph.updateAbi(info.getName(), info.getAbiHash())) {
+						changed.add(info.getName());
+					}
+				} catch (IOException e) {
+					changed.add(getClassName(outputDir, output));
+				}
+			}
+			
+			for (String output : entry.getValue()) {
+				// A class still generated by another source isn't removed.
+				if (!outputs.contains(output) && sourceMapping.getSources(output).isEmpty()) {
+					String className = getClassName(outputDir, output);
+					dependencyGraph.removeClass(className);
+					changed.add(className);
+					new File(output).delete();
+					deleted.add(output);
+				}
+			}
+			dependencyGraph.setReferences(sourcePath, references);
+		}
+		
+		refreshOutputs(deleted);
+		return changed;
+	}
+	
+	/**
+	 * Returns the Kotlin sources, not compiled yet, which depend on one of the classes.
+	 * The returned sources are added to the compiled set.
+	 */
+	private List<IResource> findDependents(Set<String> classNames, Set<IResource> compiled) {
+		if (classNames.isEmpty()) {
+			return new ArrayList<IResource>();
+		}
+		return findSources(dependencyGraph.getDependents(classNames), compiled);
+	}
+	
+	/**
+	 * Returns the existing Kotlin sources at the paths, which are not compiled yet.
+	 * The returned sources are added to the compiled set.
+	 */
+	private List<IResource> findSources(Collection<String> sourcePaths, Set<IResource> compiled) {
+		List<IResource> sources = new ArrayList<IResource>();
+		IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+		
+		for (String sourcePath : sourcePaths) {
+			IFile file = root.getFileForLocation(new Path(sourcePath));
+			
+			if (file != null && file.exists() && !compiled.contains(file) && isKotlinSource(file)) {
+				compiled.add(file);
+				sources.add(file);
+			}
+		}
+		return sources;
+	}
+	
+	private static String getSourcePath(IResource resource) {
+		return resource.getLocation().toString();
+	}
+	
+	private static List<String> getSourcePaths(List<IResource> resources) {
+		List<String> sourcePaths = new ArrayList<String>(resources.size());
+		
+		for (IResource resource : resources) {
+			sourcePaths.add(getSourcePath(resource));
+		}
+		return sourcePaths;
+	}
+	
+	private static String getClassName(String outputDir, String output) {
+		String name = output;
+		
+		if (name.startsWith(outputDir + "/")) {
+			name = name.substring(outputDir.length() + 1);
+		}
+		
+		if (name.endsWith(CLASS_EXT)) {
+			name = name.substring(0, name.length() - CLASS_EXT.length());
+		}
+		return name;
+	}
+	
+	/**
+	 * Compiles the sources at once or, if given, in chunks and publishes the problems.
+	 * 
+	 * @return the paths of the sources whose compilation failed.
+	 */
+	private Set<String> compileSources(List<IResource> kotlinResources, List<List<IResource>> chunks, IProgressMonitor monitor) throws CoreException {
+		Set<String> failed = new HashSet<String>();
+		
 		if (!kotlinResources.isEmpty()) {
+			SubMonitor progress = SubMonitor.convert(monitor, kotlinResources.size());
+			metrics.beginPhase(BuildMetrics.ASSEMBLING_CLASSPATH);
+			metrics.addSources(kotlinResources.size());
 			KotlinEclipseCompiler compiler = new KotlinEclipseCompiler();
+			compiler.setProjectName(getProject().getName());
 			compiler.setSources(kotlinResources);
 			compiler.setOutputDir(getOutputDir());
 			
-			List<String> classPathList = new ArrayList<String>();
+			compiler.setClasspath(kotlinProject.getResolvedClasspath());
 			
-			for (IClasspathEntry entry : kotlinProject.getRawClasspath()) {
-				if (entry.getEntryKind() == IClasspathEntry.CPE_SOURCE) {
-					IPath path = resolveToProject(entry.getPath());
-					classPathList.add(path.toFile().getAbsolutePath());
-				}
-			}
+			markerPublisher = new MarkerPublisher(MARKER_TYPE);
+			markerPublisher.addScope(getProject());
 			
-			String[] classpath = classPathList.toArray(new String[classPathList.size()]);			
-			compiler.setClasspath(classpath);
+			for (IResource resource : kotlinResources) {
+				markerPublisher.addScope(resource);
+			}
 			
-			compiler.setMessageCollector(new EclipseMessageCollector(this, kotlinResources));
+			EclipseMessageCollector messageCollector = new EclipseMessageCollector(this, kotlinResources);
+			messageCollector.setProgressMonitor(progress);
+			compiler.setMessageCollector(messageCollector);
+			compiler.setProgressMonitor(progress);
+			compiler.setBuildMetrics(metrics);
+			compiler.setChunks(chunks);
 			compiler.compile();
-		}		
+			AnalysisCache.getDefault().invalidate(getProject().getName());
+			
+			for (IResource resource : compiler.getFailedSources()) {
+				failed.add(getSourcePath(resource));
+			}
+			
+			metrics.beginPhase(BuildMetrics.REFRESHING_OUTPUTS);
+			List<String> outputs = new ArrayList<String>();
+			
+			for (IResource resource : kotlinResources) {
+				outputs.addAll(sourceMapping.get(getSourcePath(resource)));
+			}
+			refreshOutputs(outputs);
+			
+			metrics.addProblems(markerPublisher.getProblemCount());
+			metrics.beginPhase(BuildMetrics.PUBLISHING_MARKERS);
+			markerPublisher.publish(getProject(), null);
+			metrics.endPhase();
+		}
+		return failed;
+	}
+	
+	/**
+	 * Makes the workspace see the classes the compiler wrote or deleted, without refreshing
+	 * the whole output folder. Only the classes that differ from the workspace are
+	 * refreshed, a new package folder is refreshed with its content.
+	 */
+	private void refreshOutputs(Collection<String> outputs) {
+		IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+		Set<IResource> refreshed = new HashSet<IResource>();
+		
+		for (String output : outputs) {
+			IResource resource = root.getFileForLocation(new Path(output));
+			
+			if (resource == null) {
+				continue;
+			}
+			
+			while (resource.getParent().getType() == IResource.FOLDER && !resource.getParent().exists()) {
+				resource = resource.getParent();
+			}
+			
+			if (refreshed.add(resource) && !resource.isSynchronized(IResource.DEPTH_ZERO)) {
+				try {
+					resource.refreshLocal(resource.getType() == IResource.FILE ? IResource.DEPTH_ZERO : IResource.DEPTH_INFINITE, null);
+				} catch (CoreException e) {
+					// The next refresh of the output folder finds the class.
+				}
+			}
+		}
 	}
 	
 	private IPath getOutputDir() throws JavaModelException {
@@ -322,49 +992,11 @@ public class KotlinBuilder extends IncrementalProjectBuilder {
 	}
 	
 	public void reportOutput(Output output) {
-		File outputFile = output.outputFile;
-		Collection<File> sourceFiles = output.sourceFiles;
-		
-		for (File sourceFile : sourceFiles) {
-			String sourcePath = sourceFile.getAbsolutePath().replace(File.separatorChar, '/');
-			
-			List<String> list = sourceMapping.get(sourcePath);
-			if (list == null) {
-				list = new ArrayList<String>();
-				sourceMapping.put(sourcePath, list);
-			}
-			
-			list.add(outputFile.getAbsolutePath().replace(File.separatorChar, '/'));
-		}
-		
+		long start = System.nanoTime();
+		sourceMapping.add(output.sourceFiles, output.outputFile);
 		
-		/*
-		String[] sources = sourceName.split("\n");
-		String[] outputs = outputName.split("\n");
-		
-		for (String source : sources) {
-			if (source.length() > 0) {
-				source = source.replace(File.separator, "/");
-				
-				for (String output : outputs) {
-					if (output.length() > 0) {
-						
-						List<String> list = sourceMapping.get(source);
-						if (list == null) {
-							list = new ArrayList<>();
-							sourceMapping.put(source, list);
-						}
-						
-						output = output.replace(File.separator, "/");						
-						String outputDir = getOutputDir();
-						
-						File out = new File(outputDir, output);						
-						list.add(out.getAbsolutePath());
-					}
-				}				
-			}			
-		}
-		*/		
+		metrics.addOutput();
+		metrics.addTime(BuildMetrics.MAPPING_OUTPUTS, System.nanoTime() - start);
 	}
 	
 }
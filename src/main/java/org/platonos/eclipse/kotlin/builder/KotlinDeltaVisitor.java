@@ -0,0 +1,120 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.runtime.CoreException;
+
+/**
+ * Collects the added, changed and removed Kotlin sources of a resource delta. The
+ * classes of removed sources are deleted while visiting.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+abstract class KotlinDeltaVisitor implements IResourceDeltaVisitor {
+
+	private List<IResource> kotlinResources = new ArrayList<IResource>();
+
+	private List<IResource> removedResources = new ArrayList<IResource>();
+
+	private List<String> removedOutputs = new ArrayList<String>();
+
+	private Set<String> contributors = new HashSet<String>();
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.eclipse.core.resources.IResourceDeltaVisitor#visit(org.eclipse.core.resources.IResourceDelta)
+	 */
+	public boolean visit(IResourceDelta delta) throws CoreException {
+		IResource resource = delta.getResource();
+
+		if (isSkippedFolder(resource)) {
+			return false;
+		}
+
+		if (!isKotlinSource(resource)) {
+			//return true to continue visiting children.
+			return true;
+		}
+
+		switch (delta.getKind()) {
+		case IResourceDelta.REMOVED:
+			removedOutputs.addAll(deleteClasses(resource, contributors));
+			removedResources.add(resource);
+			break;
+		case IResourceDelta.ADDED:
+		case IResourceDelta.CHANGED:
+			kotlinResources.add(resource);
+			break;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the resource is a Kotlin file in a source folder.
+	 */
+	abstract boolean isKotlinSource(IResource resource);
+
+	/**
+	 * Returns true for folders which can't contain Kotlin sources.
+	 */
+	abstract boolean isSkippedFolder(IResource resource);
+
+	/**
+	 * Deletes the classes of a removed source and returns them. The sources of the classes
+	 * it shared with other sources are added to the contributors.
+	 */
+	abstract List<String> deleteClasses(IResource resource, Set<String> contributors);
+
+	public List<IResource> getKotlinResources() {
+		return kotlinResources;
+	}
+
+	public List<IResource> getRemovedResources() {
+		return removedResources;
+	}
+
+	public List<String> getRemovedOutputs() {
+		return removedOutputs;
+	}
+
+	/**
+	 * Returns the sources which generate a class together with a removed source.
+	 */
+	public Set<String> getContributors() {
+		return contributors;
+	}
+
+	/**
+	 * Removes a removed source from the source mapping and the dependency graph. Returns
+	 * the outputs only it generated, the other sources of the outputs it shared are added
+	 * to the contributors.
+	 */
+	static List<String> removeSource(SourceMappingStore sourceMapping, DependencyGraph dependencyGraph,
+			String sourcePath, Set<String> contributors) {
+		List<String> outputs = sourceMapping.removeSource(sourcePath, contributors);
+		dependencyGraph.removeSource(sourcePath);
+		return outputs;
+	}
+}
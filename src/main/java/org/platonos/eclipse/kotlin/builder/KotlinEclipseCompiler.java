@@ -15,30 +15,35 @@
  */
 package org.platonos.eclipse.kotlin.builder;
 
-import static org.jetbrains.jet.cli.jvm.JVMConfigurationKeys.ANNOTATIONS_PATH_KEY;
-import static org.jetbrains.jet.cli.jvm.JVMConfigurationKeys.CLASSPATH_KEY;
-
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.util.Arrays;
-import java.util.Collection;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.jet.buildtools.core.BytecodeCompiler;
-import org.jetbrains.jet.cli.common.CLIConfigurationKeys;
-import org.jetbrains.jet.cli.common.CompilerPlugin;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageLocation;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageSeverity;
 import org.jetbrains.jet.cli.common.messages.MessageCollector;
 import org.jetbrains.jet.cli.common.messages.MessageCollectorPlainTextToStream;
-import org.jetbrains.jet.cli.jvm.compiler.CompileEnvironmentUtil;
-import org.jetbrains.jet.cli.jvm.compiler.JetCoreEnvironment;
-import org.jetbrains.jet.cli.jvm.compiler.KotlinToJVMBytecodeCompiler;
-import org.jetbrains.jet.config.CommonConfigurationKeys;
-import org.jetbrains.jet.config.CompilerConfiguration;
-import org.jetbrains.jet.utils.KotlinPaths;
-import org.jetbrains.jet.utils.KotlinPathsFromHomeDir;
-import org.jetbrains.jet.utils.PathUtil;
+import org.platonos.eclipse.kotlin.Activator;
+import org.platonos.eclipse.kotlin.KotlinPreferences;
+import org.platonos.eclipse.kotlin.daemon.KotlinDaemonClient;
 
 /**
  * @author Evert Tigchelaar (everttigchelaar@gmail.com)
@@ -46,12 +51,22 @@ import org.jetbrains.jet.utils.PathUtil;
 public class KotlinEclipseCompiler {
 
 	private String stdlib;	
-	private BytecodeCompiler compiler = new BytecodeCompiler();	
+	private String projectName = null;
 	private List<IResource> sources = null;
 	private IPath output = null;
 	private String[] classpath = null;
 	
 	private MessageCollector messageCollector;
+	
+	private IProgressMonitor monitor = new NullProgressMonitor();
+	
+	private BuildMetrics metrics;
+	
+	private List<List<IResource>> chunks;
+	
+	private final Map<IResource, String> contents = new HashMap<IResource, String>();
+	
+	private final List<IResource> failedSources = new ArrayList<IResource>();
 
 	public KotlinEclipseCompiler() {
 		String kotlinHome = System.getenv("KOTLIN_HOME");
@@ -61,6 +76,14 @@ public class KotlinEclipseCompiler {
 		}
 	}
 	
+	/**
+	 * Sets the name of the project the sources belong to.
+	 * The compiler setup is cached per project in the {@link CompilerEnvironmentCache}.
+	 */
+	public void setProjectName(@NotNull String projectName) {
+		this.projectName = projectName;
+	}
+	
 	public void setSources(@NotNull List<IResource> sources) {
 		this.sources = sources;
 	}
@@ -77,76 +100,334 @@ public class KotlinEclipseCompiler {
 		this.messageCollector = messageCollector;
 	}
 
+	public void setProgressMonitor(@NotNull IProgressMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Sets the metrics the phases of the compilation are timed in.
+	 */
+	public void setBuildMetrics(BuildMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the parts of the sources that don't depend on each other. With the compile
+	 * daemon they are compiled at the same time, each in a daemon of its own, up to the
+	 * number of parallel build threads. Inside the IDE only one compilation runs at a
+	 * time, so they are compiled one after another.
+	 */
+	public void setChunks(List<List<IResource>> chunks) {
+		this.chunks = chunks;
+	}
+
+	/**
+	 * Returns the settings the classes depend on besides the sources and the classpath:
+	 * the version of the plug-in, which comes with the compiler, and the runtime library.
+	 */
+	public String getSettings() {
+		StringBuilder settings = new StringBuilder();
+		settings.append(Activator.getDefault().getBundle().getVersion());
+		settings.append(File.pathSeparatorChar).append(stdlib);
+		
+		if (stdlib != null) {
+			File runtime = new File(stdlib);
+			settings.append(File.pathSeparatorChar).append(runtime.length());
+			settings.append(File.pathSeparatorChar).append(runtime.lastModified());
+		}
+		return settings.toString();
+	}
+
+	/**
+	 * Sets the content a source is analyzed with instead of the content of the file,
+	 * like the unsaved content of an editor.
+	 */
+	public void setSourceContent(@NotNull IResource source, @NotNull String content) {
+		contents.put(source, content);
+	}
+
+	/**
+	 * Analyzes the sources without generating classes and reports the diagnostics to the
+	 * message collector. The diagnostics of a source are kept by its content and the
+	 * classpath, a source analyzed before with the same content gets the diagnostics of
+	 * that analysis. The other sources are analyzed together, in a compile daemon when
+	 * the daemon is used.
+	 * 
+	 * @return true if none of the sources has errors.
+	 * @throws OperationCanceledException if the progress monitor was canceled.
+	 */
+	public boolean analyze() {
+		AnalysisCache cache = AnalysisCache.getDefault();
+		
+		// The paths the compiler gets by the paths of the sources, unsaved content is analyzed from a copy.
+		Map<String, String> analyzedPaths = new HashMap<String, String>();
+		Map<String, String> contentHashes = new HashMap<String, String>();
+		boolean errors = false;
+		File copyDir = null;
+		
+		try {
+			String contextKey = getContextKey();
+			
+			for (IResource resource : sources) {
+				String path = resource.getLocation().toFile().getAbsolutePath();
+				String contentHash = AnalysisCache.hash(getContent(resource));
+				List<AnalysisCache.Diagnostic> diagnostics = cache.get(path, contentHash, contextKey);
+				
+				if (diagnostics != null) {
+					for (AnalysisCache.Diagnostic diagnostic : diagnostics) {
+						diagnostic.report(getMessageCollector(), path);
+						errors |= diagnostic.isError();
+					}
+					continue;
+				}
+				
+				contentHashes.put(path, contentHash);
+				
+				if (contents.containsKey(resource)) {
+					if (copyDir == null) {
+						copyDir = File.createTempFile("kotlin-analysis", "");
+						copyDir.delete();
+					}
+					
+					File copy = new File(new File(copyDir, String.valueOf(analyzedPaths.size())), resource.getName());
+					FileSupport.write(copy, getContent(resource));
+					analyzedPaths.put(copy.getAbsolutePath(), path);
+				} else {
+					analyzedPaths.put(path, path);
+				}
+			}
+			
+			if (analyzedPaths.isEmpty()) {
+				return !errors;
+			}
+			
+			RecordingCollector recorder = new RecordingCollector(getMessageCollector(), analyzedPaths);
+			String[] paths = analyzedPaths.keySet().toArray(new String[analyzedPaths.size()]);
+			analyzeSources(paths, recorder, new MonitorProgress(monitor, metrics));
+			
+			if (!recorder.exceptions) {
+				for (Map.Entry<String, String> entry : contentHashes.entrySet()) {
+					cache.put(projectName, entry.getKey(), entry.getValue(), contextKey, recorder.getDiagnostics(entry.getKey()));
+				}
+			}
+			return !errors && !recorder.errors;
+		} catch (CancellationException e) {
+			throw new OperationCanceledException();
+		} catch (IOException e) {
+			getMessageCollector().report(CompilerMessageSeverity.EXCEPTION, KotlinJvmCompilation.stackTrace(e),
+					CompilerMessageLocation.NO_LOCATION);
+			return false;
+		} finally {
+			if (copyDir != null) {
+				FileSupport.delete(copyDir);
+			}
+		}
+	}
+
+	/**
+	 * Compiles the sources. The sources of a compilation that failed are returned by
+	 * {@link #getFailedSources()}.
+	 * 
+	 * @throws OperationCanceledException if the progress monitor was canceled. 
+	 */
 	public void compile() {
-		sourcesToDir();
+		try {
+			if (chunks != null && chunks.size() > 1) {
+				compileChunks();
+			} else if (!sourcesToDir(getSourcePaths(sources), getMessageCollector(), new MonitorProgress(monitor, metrics))) {
+				failedSources.addAll(sources);
+			}
+		} catch (CancellationException e) {
+			throw new OperationCanceledException();
+		}
+	}
+
+	/**
+	 * Returns the sources of the last compilation which failed. The compiler writes no
+	 * classes for them, their classes of an earlier compilation are still there.
+	 */
+	public List<IResource> getFailedSources() {
+		return failedSources;
+	}
+
+	/**
+	 * Compiles the chunks, at the same time when the compile daemon is used. The messages of a chunk are kept until all
+	 * chunks compiled: a chunk may fail because a changed source refers to a class of
+	 * another chunk, which the previous build didn't know of. Such a chunk has unresolved
+	 * references and is compiled once more on its own, against the classes the other
+	 * chunks wrote. The messages of the other failed chunks are passed on as they are.
+	 */
+	private void compileChunks() {
+		int threads = 1;
+		
+		if (KotlinPreferences.isCompileDaemonUsed()) {
+			threads = Math.max(1, Math.min(chunks.size(), KotlinPreferences.getParallelBuildThreads()));
+			monitor.subTask("Compiling " + chunks.size() + " parts, " + threads + " at the same time");
+		} else {
+			monitor.subTask("Compiling " + chunks.size() + " parts");
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<BufferingCollector> collectors = new ArrayList<BufferingCollector>();
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		
+		// The phases of the chunks overlap, so they aren't shown or timed.
+		final CompilationProgress progress = new CompilationProgress() {
+			@Override
+			public void beginPhase(String name) {
+			}
+
+			@Override
+			public boolean isCanceled() {
+				return monitor.isCanceled();
+			}
+		};
+		
+		for (final List<IResource> chunk : chunks) {
+			final BufferingCollector collector = new BufferingCollector();
+			collectors.add(collector);
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return sourcesToDir(getSourcePaths(chunk), collector, progress);
+				}
+			}));
+		}
+		executor.shutdown();
+		
+		boolean[] succeeded = new boolean[chunks.size()];
+		boolean outputs = false;
+		RuntimeException failure = null;
+		
+		// All chunks are waited for, so no chunk writes classes after the compilation ended.
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				succeeded[i] = results.get(i).get();
+				outputs |= collectors.get(i).hasOutputs();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				failure = cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+				throw new CancellationException();
+			}
+		}
+		
+		if (failure != null) {
+			throw failure;
+		}
+		
+		for (int i = 0; i < chunks.size(); i++) {
+			if (succeeded[i]) {
+				collectors.get(i).replay(getMessageCollector());
+			}
+		}
+		
+		for (int i = 0; i < chunks.size(); i++) {
+			if (succeeded[i]) {
+				continue;
+			}
+			
+			List<IResource> chunk = chunks.get(i);
+			
+			if (outputs && collectors.get(i).hasUnresolvedReferences()) {
+				if (!sourcesToDir(getSourcePaths(chunk), getMessageCollector(), new MonitorProgress(monitor, metrics))) {
+					failedSources.addAll(chunk);
+				}
+			} else {
+				collectors.get(i).replay(getMessageCollector());
+				failedSources.addAll(chunk);
+			}
+		}
+	}
+
+	private void analyzeSources(String[] sourcePaths, MessageCollector messageCollector, CompilationProgress progress) {
+		if (KotlinPreferences.isCompileDaemonUsed()) {
+			try {
+				KotlinDaemonClient.getDefault().analyze(projectName, stdlib, sourcePaths, classpath, messageCollector, progress);
+				return;
+			} catch (IOException e) {
+				messageCollector.report(CompilerMessageSeverity.WARNING,
+						"Kotlin compile daemon failed, analyzing inside the IDE: " + e.getMessage(),
+						CompilerMessageLocation.NO_LOCATION);
+			}
+		}
+		
+		KotlinJvmCompilation compilation = new KotlinJvmCompilation(projectName, stdlib, sourcePaths, classpath, null, messageCollector);
+		compilation.setProgress(progress);
+		compilation.analyze();
+	}
+
+	/**
+	 * @return true if the compilation succeeded.
+	 */
+	private boolean sourcesToDir(String[] sourcePaths, MessageCollector messageCollector, CompilationProgress progress) {
+		File outputFile = output.toFile();
+		
+		if (KotlinPreferences.isCompileDaemonUsed()) {
+			try {
+				return KotlinDaemonClient.getDefault().compile(projectName, stdlib, sourcePaths, classpath, outputFile, messageCollector, progress);
+			} catch (IOException e) {
+				messageCollector.report(CompilerMessageSeverity.WARNING,
+						"Kotlin compile daemon failed, compiling inside the IDE: " + e.getMessage(),
+						CompilerMessageLocation.NO_LOCATION);
+			}
+		}
+		
+		KotlinJvmCompilation compilation = new KotlinJvmCompilation(projectName, stdlib, sourcePaths, classpath, outputFile, messageCollector);
+		compilation.setProgress(progress);
+		return compilation.run();
 	}
 
-	private void sourcesToDir() {
+	/**
+	 * Returns the hash of the runtime library and the classpath, which the diagnostics of a source depend on.
+	 */
+	private String getContextKey() throws IOException {
+		StringBuilder key = new StringBuilder();
+		key.append(stdlib);
+		
+		if (classpath != null) {
+			for (String path : classpath) {
+				key.append(File.pathSeparatorChar).append(path);
+			}
+		}
+		return AnalysisCache.hash(key.toString().getBytes("UTF-8"));
+	}
+	
+	private byte[] getContent(IResource resource) throws IOException {
+		String content = contents.get(resource);
+		
+		if (content != null) {
+			return content.getBytes("UTF-8");
+		}
+		
+		InputStream in = new FileInputStream(resource.getLocation().toFile());
 		try {
-			JetCoreEnvironment environment = env(stdlib, classpath);
-			File outputFile = output.toFile();
-			KotlinToJVMBytecodeCompiler
-					.compileBunchOfSources(environment, null, outputFile,	true);
-		} catch (Exception e) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
 		}
 	}
 
-    private JetCoreEnvironment env(String stdlib, String[] classpath) {
-    	String[] paths = new String[sources.size()];
+	private static String[] getSourcePaths(List<IResource> sources) {
+		String[] paths = new String[sources.size()];
 		int p = 0;
 		
 		for (IResource resource : sources) {
 			String path = resource.getLocation().toFile().getAbsolutePath();			
 			paths[p++] = path;
 		}
-    	
-        CompilerConfiguration configuration = createConfiguration(stdlib, classpath, paths);
-        return new JetCoreEnvironment(CompileEnvironmentUtil.createMockDisposable(), configuration);
-    }
-    
-    private static String errorMessage() {
-        return "compilation failed";
-    }
-    
-    private CompilerConfiguration createConfiguration(String stdlib, String[] classpath, String[] sourceRoots) {
-        KotlinPaths paths = getKotlinPathsForAntTask();
-        CompilerConfiguration configuration = new CompilerConfiguration();
-        configuration.add(CLASSPATH_KEY, PathUtil.findRtJar());
-        if ((stdlib != null) && (stdlib.trim().length() > 0)) {
-            configuration.add(CLASSPATH_KEY, new File(stdlib));
-        }
-        else {
-            File path = paths.getRuntimePath();
-            if (path.exists()) {
-                configuration.add(CLASSPATH_KEY, path);
-            }
-        }
-        if ((classpath != null) && (classpath.length > 0)) {
-            for (String path : classpath) {
-                configuration.add(CLASSPATH_KEY, new File(path));
-            }
-        }
-        File jdkAnnotationsPath = paths.getJdkAnnotationsPath();
-        if (jdkAnnotationsPath.exists()) {
-            configuration.add(ANNOTATIONS_PATH_KEY, jdkAnnotationsPath);
-        }
-
-        configuration.addAll(CommonConfigurationKeys.SOURCE_ROOTS_KEY, Arrays.asList(sourceRoots));
-       	configuration.put(CLIConfigurationKeys.MESSAGE_COLLECTOR_KEY, getMessageCollector());
-
-        // lets register any compiler plugins
-        configuration.addAll(CLIConfigurationKeys.COMPILER_PLUGINS, getCompilerPlugins());
-        return configuration;
-    }
-    
-    private Collection<CompilerPlugin> getCompilerPlugins() {
-		return compiler.getCompilerPlugins();
+		return paths;
 	}
-
-	private static KotlinPaths getKotlinPathsForAntTask() {
-        return new KotlinPathsFromHomeDir(PathUtil.getJarPathForClass(BytecodeCompiler.class).getParentFile().getParentFile());
-    }
-
+    
 	private MessageCollector getMessageCollector() {
 		if (messageCollector == null) {
 			return MessageCollectorPlainTextToStream.PLAIN_TEXT_TO_SYSTEM_ERR;
@@ -154,4 +435,142 @@ public class KotlinEclipseCompiler {
 			return messageCollector;
 		}		
 	}
+	
+	/**
+	 * Keeps the messages of a chunk until it is known whether all chunks compiled.
+	 */
+	private static class BufferingCollector implements MessageCollector {
+		
+		/**
+		 * The start of the error the compiler reports for a name it can't find.
+		 */
+		private static final String UNRESOLVED_REFERENCE = "Unresolved reference"; //$NON-NLS-1$
+		
+		private final List<CompilerMessageSeverity> severities = new ArrayList<CompilerMessageSeverity>();
+		
+		private final List<String> messages = new ArrayList<String>();
+		
+		private final List<CompilerMessageLocation> locations = new ArrayList<CompilerMessageLocation>();
+
+		@Override
+		public synchronized void report(@NotNull CompilerMessageSeverity severity, @NotNull String message,
+				@NotNull CompilerMessageLocation location) {
+			severities.add(severity);
+			messages.add(message);
+			locations.add(location);
+		}
+		
+		/**
+		 * Returns true if the compiler wrote classes.
+		 */
+		synchronized boolean hasOutputs() {
+			return severities.contains(CompilerMessageSeverity.OUTPUT);
+		}
+		
+		/**
+		 * Returns true if one of the errors is a name the compiler couldn't find.
+		 */
+		synchronized boolean hasUnresolvedReferences() {
+			for (int i = 0; i < messages.size(); i++) {
+				if (severities.get(i) == CompilerMessageSeverity.ERROR && messages.get(i).startsWith(UNRESOLVED_REFERENCE)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		synchronized void replay(MessageCollector messageCollector) {
+			for (int i = 0; i < messages.size(); i++) {
+				messageCollector.report(severities.get(i), messages.get(i), locations.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * Passes the messages of an analysis on with the paths of the sources, and keeps the
+	 * diagnostics of every analyzed source.
+	 */
+	private static class RecordingCollector implements MessageCollector {
+		
+		private final MessageCollector messageCollector;
+		
+		/**
+		 * The paths of the sources by the normalized paths the compiler got.
+		 */
+		private final Map<String, String> sourcePaths = new HashMap<String, String>();
+		
+		private final Map<String, List<AnalysisCache.Diagnostic>> diagnostics = new HashMap<String, List<AnalysisCache.Diagnostic>>();
+		
+		private boolean errors = false;
+		
+		private boolean exceptions = false;
+		
+		RecordingCollector(MessageCollector messageCollector, Map<String, String> analyzedPaths) {
+			this.messageCollector = messageCollector;
+			
+			for (Map.Entry<String, String> entry : analyzedPaths.entrySet()) {
+				sourcePaths.put(normalize(entry.getKey()), entry.getValue());
+			}
+		}
+
+		@Override
+		public void report(@NotNull CompilerMessageSeverity severity, @NotNull String message,
+				@NotNull CompilerMessageLocation location) {
+			errors |= severity == CompilerMessageSeverity.ERROR || severity == CompilerMessageSeverity.EXCEPTION;
+			exceptions |= severity == CompilerMessageSeverity.EXCEPTION;
+			String sourcePath = location.getPath() != null ? sourcePaths.get(normalize(location.getPath())) : null;
+			
+			if (sourcePath == null) {
+				messageCollector.report(severity, message, location);
+				return;
+			}
+			
+			AnalysisCache.Diagnostic diagnostic = new AnalysisCache.Diagnostic(severity, message, location.getLine(), location.getColumn());
+			getDiagnostics(sourcePath).add(diagnostic);
+			diagnostic.report(messageCollector, sourcePath);
+		}
+		
+		List<AnalysisCache.Diagnostic> getDiagnostics(String sourcePath) {
+			List<AnalysisCache.Diagnostic> list = diagnostics.get(sourcePath);
+			
+			if (list == null) {
+				list = new ArrayList<AnalysisCache.Diagnostic>();
+				diagnostics.put(sourcePath, list);
+			}
+			return list;
+		}
+		
+		private static String normalize(String path) {
+			return path.replace('\\', '/');
+		}
+	}
+	
+	/**
+	 * Shows the phases of the compilation as sub tasks of a progress monitor and times them.
+	 */
+	private static class MonitorProgress implements CompilationProgress {
+		
+		private final IProgressMonitor monitor;
+		
+		private final BuildMetrics metrics;
+		
+		MonitorProgress(IProgressMonitor monitor, BuildMetrics metrics) {
+			this.monitor = monitor;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public void beginPhase(String name) {
+			monitor.subTask(name);
+			
+			if (metrics != null) {
+				metrics.beginPhase(name);
+			}
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return monitor.isCanceled();
+		}
+	}
 }
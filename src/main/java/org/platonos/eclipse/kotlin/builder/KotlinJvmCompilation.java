@@ -0,0 +1,208 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.OutputFile;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageLocation;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageSeverity;
+import org.jetbrains.jet.cli.common.messages.MessageCollector;
+import org.jetbrains.jet.cli.common.messages.OutputMessageUtil;
+import org.jetbrains.jet.cli.jvm.compiler.JetCoreEnvironment;
+import org.jetbrains.jet.cli.jvm.compiler.KotlinToJVMBytecodeCompiler;
+import org.jetbrains.jet.codegen.ClassFileFactory;
+import org.jetbrains.jet.codegen.state.GenerationState;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+
+/**
+ * A single run of the Kotlin compiler on plain file paths.
+ *
+ * This class doesn't depend on the Eclipse API so it is used both inside the IDE
+ * and by the compile daemon.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class KotlinJvmCompilation {
+
+	/**
+	 * The compiler keeps its application in a static field, so only one compilation
+	 * can run in a JVM at a time. Parallel builds use a daemon per compilation.
+	 */
+	private static final Object COMPILER_LOCK = new Object();
+
+	private final String projectName;
+	private final String stdlib;
+	private final String[] sourcePaths;
+	private final String[] classpath;
+	private final File outputDir;
+	private final MessageCollector messageCollector;
+	private CompilationProgress progress = CompilationProgress.NONE;
+
+	/**
+	 * @param outputDir the directory the classes are written to, null if the sources are only analyzed.
+	 */
+	public KotlinJvmCompilation(@NotNull String projectName, String stdlib, @NotNull String[] sourcePaths,
+			String[] classpath, File outputDir, @NotNull MessageCollector messageCollector) {
+		this.projectName = projectName;
+		this.stdlib = stdlib;
+		this.sourcePaths = sourcePaths;
+		this.classpath = classpath;
+		this.outputDir = outputDir;
+		this.messageCollector = messageCollector;
+	}
+
+	public void setProgress(@NotNull CompilationProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Compiles the sources. Exceptions thrown by the compiler are reported to the message
+	 * collector instead of being thrown.
+	 *
+	 * @return true if the compilation succeeded.
+	 * @throws CancellationException if the progress was canceled before the classes were written.
+	 */
+	public boolean run() {
+		synchronized (COMPILER_LOCK) {
+			return compile();
+		}
+	}
+
+	/**
+	 * Analyzes the sources and reports the diagnostics, without generating classes.
+	 *
+	 * @return true if the sources have no errors.
+	 * @throws CancellationException if the progress was canceled.
+	 */
+	public boolean analyze() {
+		synchronized (COMPILER_LOCK) {
+			checkCanceled();
+			progress.beginPhase("Creating environment");
+			CompilerEnvironmentCache.Entry entry = CompilerEnvironmentCache.getDefault().get(projectName, stdlib, classpath);
+			Disposable disposable = entry.newDisposable();
+
+			try {
+				JetCoreEnvironment environment = entry.createEnvironment(disposable, sourcePaths, messageCollector);
+
+				checkCanceled();
+				progress.beginPhase("Analyzing");
+				return KotlinToJVMBytecodeCompiler.analyze(environment) != null;
+			} catch (CancellationException e) {
+				throw e;
+			} catch (Throwable e) {
+				messageCollector.report(CompilerMessageSeverity.EXCEPTION, stackTrace(e), CompilerMessageLocation.NO_LOCATION);
+				return false;
+			} finally {
+				Disposer.dispose(disposable);
+			}
+		}
+	}
+
+	private boolean compile() {
+		checkCanceled();
+		progress.beginPhase("Creating environment");
+		CompilerEnvironmentCache.Entry entry = CompilerEnvironmentCache.getDefault().get(projectName, stdlib, classpath);
+		Disposable disposable = entry.newDisposable();
+
+		try {
+			JetCoreEnvironment environment = entry.createEnvironment(disposable, sourcePaths, messageCollector);
+
+			checkCanceled();
+			progress.beginPhase("Analyzing and generating");
+			GenerationState state = KotlinToJVMBytecodeCompiler.analyzeAndGenerate(environment);
+
+			if (state == null) {
+				return false;
+			}
+
+			try {
+				// Once writing started all classes are written, so the outputs stay consistent.
+				checkCanceled();
+				progress.beginPhase("Writing classes");
+				writeOutputs(state.getFactory());
+				return true;
+			} finally {
+				state.destroy();
+			}
+		} catch (CancellationException e) {
+			throw e;
+		} catch (Throwable e) {
+			messageCollector.report(CompilerMessageSeverity.EXCEPTION, stackTrace(e), CompilerMessageLocation.NO_LOCATION);
+			return false;
+		} finally {
+			Disposer.dispose(disposable);
+		}
+	}
+
+	/**
+	 * Writes the generated classes to the output directory. Class files which already
+	 * have the same content are not touched, so the Java builder doesn't see them as changed.
+	 * A class is written to a temporary file first and renamed, so a class file is never
+	 * read half written.
+	 */
+	private void writeOutputs(ClassFileFactory factory) throws IOException {
+		for (OutputFile outputFile : factory.asList()) {
+			File target = new File(outputDir, outputFile.getRelativePath());
+			byte[] bytes = outputFile.asByteArray();
+
+			if (!hasContent(target, bytes)) {
+				FileSupport.replace(target, bytes);
+			}
+
+			messageCollector.report(CompilerMessageSeverity.OUTPUT,
+					OutputMessageUtil.formatOutputMessage(outputFile.getSourceFiles(), target),
+					CompilerMessageLocation.NO_LOCATION);
+		}
+	}
+
+	private static boolean hasContent(File file, byte[] bytes) throws IOException {
+		if (!file.isFile() || file.length() != bytes.length) {
+			return false;
+		}
+
+		byte[] existing = new byte[bytes.length];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(existing);
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(existing, bytes);
+	}
+
+	private void checkCanceled() {
+		if (progress.isCanceled()) {
+			throw new CancellationException();
+		}
+	}
+
+	static String stackTrace(Throwable e) {
+		StringWriter writer = new StringWriter();
+		e.printStackTrace(new PrintWriter(writer));
+		return writer.toString();
+	}
+}
@@ -16,13 +16,26 @@
 package org.platonos.eclipse.kotlin.builder;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.IClasspathContainer;
 import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IElementChangedListener;
+import org.eclipse.jdt.core.IJavaElementDelta;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.JavaModelException;
@@ -33,12 +46,62 @@ import org.xml.sax.SAXException;
  */
 public class KotlinProject {
 	
+	private static final Map<String, KotlinProject> projects = new ConcurrentHashMap<String, KotlinProject>();
+	
+	private static final IElementChangedListener classpathListener = new IElementChangedListener() {
+		@Override
+		public void elementChanged(ElementChangedEvent event) {
+			for (IJavaElementDelta delta : event.getDelta().getAffectedChildren()) {
+				if (delta.getElement() instanceof IJavaProject) {
+					KotlinProject kotlinProject = projects.get(delta.getElement().getElementName());
+					
+					if (isClasspathChange(delta)) {
+						if (kotlinProject != null) {
+							kotlinProject.sourceRootIndex = null;
+						}
+						
+						// The resolved classpath holds the output folders of referenced projects.
+						for (KotlinProject project : projects.values()) {
+							project.resolvedClasspath = null;
+						}
+					}
+				}
+			}
+		}
+	};
+	
+	private static final String JRE_CONTAINER = "org.eclipse.jdt.launching.JRE_CONTAINER"; //$NON-NLS-1$
+	
 	private final IJavaProject javaProject;
 	
+	private volatile SourceRootIndex sourceRootIndex;
+	
+	private volatile String[] resolvedClasspath;
+	
 	private KotlinProject(IProject project) {
 		this.javaProject = JavaCore.create(project);
 	}
 	
+	/**
+	 * Starts listening for classpath changes of Kotlin projects.
+	 */
+	public static void startup() {
+		JavaCore.addElementChangedListener(classpathListener, ElementChangedEvent.POST_CHANGE);
+	}
+	
+	public static void shutdown() {
+		JavaCore.removeElementChangedListener(classpathListener);
+		projects.clear();
+	}
+	
+	private static boolean isClasspathChange(IJavaElementDelta delta) {
+		int flags = IJavaElementDelta.F_CLASSPATH_CHANGED 
+				| IJavaElementDelta.F_RESOLVED_CLASSPATH_CHANGED 
+				| IJavaElementDelta.F_CLOSED 
+				| IJavaElementDelta.F_OPENED;
+		return delta.getKind() != IJavaElementDelta.CHANGED || (delta.getFlags() & flags) != 0;
+	}
+	
 	public IJavaProject getJavaProject() {
 		return javaProject;
 	}
@@ -51,9 +114,157 @@ public class KotlinProject {
 		return javaProject.getRawClasspath();
 	}
 	
+	/**
+	 * Returns true if the workspace path is in one of the source folders of the project.
+	 * The source folders are indexed once and indexed again after a classpath change.
+	 */
+	public boolean isInSourceFolder(IPath fullPath) throws JavaModelException {
+		return getSourceRootIndex().isSource(fullPath);
+	}
+	
+	/**
+	 * Returns true if the resource is a Kotlin file in one of the source folders.
+	 */
+	public boolean isKotlinSource(IResource resource) throws JavaModelException {
+		return getSourceRootIndex().isKotlinSource(resource);
+	}
+	
+	/**
+	 * Returns the workspace paths of the source folders, a source folder nested in another
+	 * one is left out.
+	 */
+	public List<IPath> getSourceRoots() throws JavaModelException {
+		return getSourceRootIndex().getSourceRoots();
+	}
+	
+	/**
+	 * Returns true if the workspace path is the default output folder or the output
+	 * folder of one of the source folders.
+	 */
+	public boolean isOutputFolder(IPath fullPath) throws JavaModelException {
+		if (fullPath.equals(javaProject.getOutputLocation())) {
+			return true;
+		}
+		
+		for (IClasspathEntry entry : getRawClasspath()) {
+			if (entry.getEntryKind() == IClasspathEntry.CPE_SOURCE && fullPath.equals(entry.getOutputLocation())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private SourceRootIndex getSourceRootIndex() throws JavaModelException {
+		SourceRootIndex index = sourceRootIndex;
+		
+		if (index == null) {
+			index = new SourceRootIndex(getRawClasspath());
+			sourceRootIndex = index;
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns the file system paths the compiler gets as classpath: the source folders and
+	 * the output folder of the project, the libraries of the resolved classpath and the
+	 * output folders of referenced projects. The JRE is left out, the compiler adds its own.
+	 * The classpath is resolved once and resolved again after a classpath change.
+	 */
+	public String[] getResolvedClasspath() throws JavaModelException {
+		String[] classpath = resolvedClasspath;
+		
+		if (classpath == null) {
+			classpath = resolveClasspath();
+			resolvedClasspath = classpath;
+		}
+		return classpath.clone();
+	}
+	
+	/**
+	 * Returns the file system paths of the output folders of the project: the default
+	 * output folder and the output folders of the source folders.
+	 */
+	public Set<String> getOutputLocations() throws JavaModelException {
+		Set<String> paths = new LinkedHashSet<String>();
+		addOutputFolders(ResourcesPlugin.getWorkspace().getRoot(), javaProject, paths);
+		return paths;
+	}
+	
+	private String[] resolveClasspath() throws JavaModelException {
+		IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+		Set<String> paths = new LinkedHashSet<String>();
+		Set<IPath> jreLibraries = getJreLibraries();
+		
+		for (IClasspathEntry entry : javaProject.getResolvedClasspath(true)) {
+			switch (entry.getEntryKind()) {
+			case IClasspathEntry.CPE_SOURCE:
+				addLocation(root, entry.getPath(), paths);
+				break;
+			case IClasspathEntry.CPE_LIBRARY:
+				if (!jreLibraries.contains(entry.getPath())) {
+					addLocation(root, entry.getPath(), paths);
+				}
+				break;
+			case IClasspathEntry.CPE_PROJECT:
+				addOutputFolders(root, JavaCore.create(root.getProject(entry.getPath().lastSegment())), paths);
+				break;
+			}
+		}
+		
+		addOutputFolders(root, javaProject, paths);
+		return paths.toArray(new String[paths.size()]);
+	}
+	
+	private Set<IPath> getJreLibraries() throws JavaModelException {
+		Set<IPath> libraries = new HashSet<IPath>();
+		
+		for (IClasspathEntry entry : javaProject.getRawClasspath()) {
+			if (entry.getEntryKind() == IClasspathEntry.CPE_CONTAINER && JRE_CONTAINER.equals(entry.getPath().segment(0))) {
+				IClasspathContainer container = JavaCore.getClasspathContainer(entry.getPath(), javaProject);
+				
+				if (container != null) {
+					for (IClasspathEntry library : container.getClasspathEntries()) {
+						libraries.add(library.getPath());
+					}
+				}
+			}
+		}
+		return libraries;
+	}
+	
+	private static void addOutputFolders(IWorkspaceRoot root, IJavaProject project, Set<String> paths) throws JavaModelException {
+		if (!project.exists()) {
+			return;
+		}
+		
+		addLocation(root, project.getOutputLocation(), paths);
+		
+		for (IClasspathEntry entry : project.getRawClasspath()) {
+			if (entry.getEntryKind() == IClasspathEntry.CPE_SOURCE && entry.getOutputLocation() != null) {
+				addLocation(root, entry.getOutputLocation(), paths);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the file system location of a workspace path, or the path itself if it's not in the workspace.
+	 */
+	private static void addLocation(IWorkspaceRoot root, IPath path, Set<String> paths) {
+		IResource resource = root.findMember(path);
+		IPath location = resource != null ? resource.getLocation() : null;
+		
+		if (location == null && path.segmentCount() > 0 && root.getProject(path.segment(0)).exists()) {
+			// A folder that isn't created yet, like the output folder before the first build.
+			location = root.getProject(path.segment(0)).getLocation().append(path.removeFirstSegments(1));
+		}
+		
+		paths.add((location != null ? location : path).toFile().getAbsolutePath());
+	}
+	
 	public static KotlinProject create(IProject project) throws Exception {
 		KotlinProject kotlinProject = new KotlinProject(project);
 		kotlinProject.initClassPath();
+		projects.put(project.getName(), kotlinProject);
 		return kotlinProject;
 	}
 	
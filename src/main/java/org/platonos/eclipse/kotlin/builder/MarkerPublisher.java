@@ -0,0 +1,174 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+
+/**
+ * Collects the problems of a compilation and publishes them as markers in one
+ * workspace operation, so listeners get a single resource change event.
+ *
+ * The markers of every resource in the scope are replaced by the collected problems.
+ * Markers that are the same as a collected problem are kept, the others are deleted.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class MarkerPublisher {
+
+	private static final String[] ATTRIBUTE_NAMES = { IMarker.MESSAGE, IMarker.SEVERITY, IMarker.LINE_NUMBER };
+
+	private final String markerType;
+
+	private final Set<IResource> scope = new LinkedHashSet<IResource>();
+
+	private final Map<IResource, List<Problem>> problems = new HashMap<IResource, List<Problem>>();
+
+	public MarkerPublisher(String markerType) {
+		this.markerType = markerType;
+	}
+
+	/**
+	 * Adds a resource whose markers are replaced when the problems are published.
+	 */
+	public synchronized void addScope(IResource resource) {
+		scope.add(resource);
+	}
+
+	public synchronized void addProblem(IResource resource, String message, int lineNumber, int severity) {
+		if (lineNumber == -1) {
+			lineNumber = 1;
+		}
+
+		List<Problem> list = problems.get(resource);
+
+		if (list == null) {
+			list = new ArrayList<Problem>();
+			problems.put(resource, list);
+		}
+		list.add(new Problem(message, severity, lineNumber));
+		scope.add(resource);
+	}
+
+	public synchronized int getProblemCount() {
+		int count = 0;
+
+		for (List<Problem> list : problems.values()) {
+			count += list.size();
+		}
+		return count;
+	}
+
+	public synchronized void publish(ISchedulingRule rule, IProgressMonitor monitor) throws CoreException {
+		IWorkspaceRunnable runnable = new IWorkspaceRunnable() {
+			@Override
+			public void run(IProgressMonitor monitor) throws CoreException {
+				for (IResource resource : scope) {
+					if (resource.isAccessible()) {
+						update(resource);
+					}
+				}
+			}
+		};
+
+		ResourcesPlugin.getWorkspace().run(runnable, rule, IWorkspace.AVOID_UPDATE, monitor);
+		scope.clear();
+		problems.clear();
+	}
+
+	private void update(IResource resource) throws CoreException {
+		// The number of markers still to create per problem, a problem can be reported more than once.
+		Map<Problem, Integer> remaining = new LinkedHashMap<Problem, Integer>();
+		List<Problem> list = problems.get(resource);
+
+		if (list != null) {
+			for (Problem problem : list) {
+				Integer count = remaining.get(problem);
+				remaining.put(problem, count == null ? 1 : count + 1);
+			}
+		}
+
+		for (IMarker marker : resource.findMarkers(markerType, false, IResource.DEPTH_ZERO)) {
+			Problem existing = new Problem(
+					marker.getAttribute(IMarker.MESSAGE, null),
+					marker.getAttribute(IMarker.SEVERITY, -1),
+					marker.getAttribute(IMarker.LINE_NUMBER, -1));
+			Integer count = remaining.get(existing);
+
+			if (count == null) {
+				marker.delete();
+			} else if (count == 1) {
+				remaining.remove(existing);
+			} else {
+				remaining.put(existing, count - 1);
+			}
+		}
+
+		for (Map.Entry<Problem, Integer> entry : remaining.entrySet()) {
+			Problem problem = entry.getKey();
+
+			for (int i = 0; i < entry.getValue(); i++) {
+				IMarker marker = resource.createMarker(markerType);
+				marker.setAttributes(ATTRIBUTE_NAMES, new Object[] {
+						problem.message, problem.severity, problem.lineNumber });
+			}
+		}
+	}
+
+	private static class Problem {
+
+		private final String message;
+		private final int severity;
+		private final int lineNumber;
+
+		Problem(String message, int severity, int lineNumber) {
+			this.message = message;
+			this.severity = severity;
+			this.lineNumber = lineNumber;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Problem)) {
+				return false;
+			}
+
+			Problem other = (Problem) obj;
+			return severity == other.severity
+					&& lineNumber == other.lineNumber
+					&& (message == null ? other.message == null : message.equals(other.message));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * severity + lineNumber) + (message == null ? 0 : message.hashCode());
+		}
+	}
+}
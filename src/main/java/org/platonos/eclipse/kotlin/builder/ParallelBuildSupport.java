@@ -0,0 +1,78 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.lang.reflect.Method;
+
+import org.eclipse.core.resources.IWorkspaceDescription;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.platonos.eclipse.kotlin.Activator;
+import org.platonos.eclipse.kotlin.KotlinPreferences;
+
+/**
+ * Lets the workspace build independent projects at the same time.
+ *
+ * The workspace builds projects in the order of their references. Platforms which
+ * support concurrent builds run projects that don't depend on each other at the same
+ * time, as long as the scheduling rules of their builders don't conflict. The
+ * {@link KotlinBuilder} only locks its own project.
+ *
+ * The number of concurrent builds is a setting of the workspace, which the user
+ * controls. It is only checked here, when it allows fewer builds than the parallel
+ * build threads a message is logged that tells where to raise it.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class ParallelBuildSupport {
+
+	private ParallelBuildSupport() {
+	}
+
+	/**
+	 * Logs a message if parallel builds are enabled but the workspace allows fewer concurrent
+	 * builds than the number of build threads. The workspace description isn't changed.
+	 */
+	public static void checkWorkspace() {
+		if (!KotlinPreferences.isParallelBuildEnabled()) {
+			return;
+		}
+
+		IWorkspaceDescription description = ResourcesPlugin.getWorkspace().getDescription();
+		int threads = KotlinPreferences.getParallelBuildThreads();
+
+		try {
+			// Concurrent builds are only available on newer platforms.
+			Method getter = description.getClass().getMethod("getMaxConcurrentBuilds");
+			int maxBuilds = ((Integer) getter.invoke(description)).intValue();
+
+			if (maxBuilds < threads) {
+				log(IStatus.INFO, "The workspace builds " + maxBuilds + " project(s) at the same time, raise"
+						+ " 'Max simultaneous project builds' under General > Workspace > Build to " + threads
+						+ " to build independent Kotlin projects in parallel", null);
+			}
+		} catch (NoSuchMethodException e) {
+			log(IStatus.INFO, "Parallel Kotlin builds need a platform that supports concurrent builds", null);
+		} catch (Exception e) {
+			log(IStatus.WARNING, "Failed to read the number of concurrent builds of the workspace", e);
+		}
+	}
+
+	private static void log(int severity, String message, Throwable e) {
+		Activator.getDefault().getLog().log(new Status(severity, Activator.PLUGIN_ID, message, e));
+	}
+}
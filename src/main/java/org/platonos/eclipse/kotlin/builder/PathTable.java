@@ -0,0 +1,113 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.Arrays;
+
+/**
+ * Gives every distinct path an int id, ids are handed out in order starting at 0.
+ *
+ * Every path is stored once. The ids are kept in an open addressing hash table of
+ * ints, so a path costs a slot in two int arrays besides the string itself. Paths
+ * are never removed, a table with many unused paths is replaced by a new one.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class PathTable {
+
+	private String[] paths = new String[16];
+
+	/**
+	 * The id + 1 of the path in each slot, 0 for an empty slot.
+	 */
+	private int[] slots = new int[32];
+
+	private int size = 0;
+
+	/**
+	 * Returns the id of a path, the path is added if it isn't in the table yet.
+	 */
+	public int add(String path) {
+		int slot = findSlot(path);
+
+		if (slots[slot] != 0) {
+			return slots[slot] - 1;
+		}
+
+		if (size == paths.length) {
+			paths = Arrays.copyOf(paths, size * 2);
+		}
+
+		paths[size] = path;
+		slots[slot] = ++size;
+
+		if (size * 2 > slots.length) {
+			rehash();
+		}
+		return size - 1;
+	}
+
+	/**
+	 * Returns the id of a path, or -1 if it isn't in the table.
+	 */
+	public int indexOf(String path) {
+		return slots[findSlot(path)] - 1;
+	}
+
+	public String get(int id) {
+		return paths[id];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns an estimate of the heap used by the table and its paths in bytes.
+	 */
+	public long estimateSize() {
+		long bytes = 16 + 4L * paths.length + 16 + 4L * slots.length;
+
+		for (int i = 0; i < size; i++) {
+			bytes += estimateSize(paths[i]);
+		}
+		return bytes;
+	}
+
+	static long estimateSize(String string) {
+		// The string object and its char array.
+		return 40 + 2L * string.length();
+	}
+
+	private int findSlot(String path) {
+		int mask = slots.length - 1;
+		int hash = path.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & mask;
+
+		while (slots[slot] != 0 && !paths[slots[slot] - 1].equals(path)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+
+		for (int id = 0; id < size; id++) {
+			slots[findSlot(paths[id])] = id + 1;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.ISaveContext;
+import org.eclipse.core.resources.ISaveParticipant;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.platonos.eclipse.kotlin.Activator;
+
+/**
+ * Owns the {@link SourceMappingStore} and the {@link DependencyGraph} of every Kotlin project.
+ *
+ * They are loaded from the state location the first time the builder of their project
+ * is initialized. When the workspace is saved only the ones that changed since the
+ * last save are written.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class SourceMappingManager implements ISaveParticipant {
+
+	private static final String MAPPING_EXT = ".mapping";
+
+	private static final String DEPENDENCIES_EXT = ".deps";
+
+	private static final SourceMappingManager INSTANCE = new SourceMappingManager();
+
+	private final Map<String, SourceMappingStore> stores = new HashMap<String, SourceMappingStore>();
+
+	private final Map<String, DependencyGraph> graphs = new HashMap<String, DependencyGraph>();
+
+	public static SourceMappingManager getDefault() {
+		return INSTANCE;
+	}
+
+	public synchronized SourceMappingStore getStore(IProject project) {
+		SourceMappingStore store = stores.get(project.getName());
+
+		if (store == null) {
+			store = new SourceMappingStore();
+
+			try {
+				store.load(getFile(project.getName(), MAPPING_EXT));
+			} catch (IOException e) {
+				// A damaged mapping is the same as no mapping, the next full build restores it.
+				log("Failed to load the Kotlin source mapping of " + project.getName(), e);
+			}
+			stores.put(project.getName(), store);
+		}
+		return store;
+	}
+
+	public synchronized DependencyGraph getDependencyGraph(IProject project) {
+		DependencyGraph graph = graphs.get(project.getName());
+
+		if (graph == null) {
+			graph = new DependencyGraph();
+
+			try {
+				graph.load(getFile(project.getName(), DEPENDENCIES_EXT));
+			} catch (IOException e) {
+				log("Failed to load the Kotlin dependencies of " + project.getName(), e);
+			}
+			graphs.put(project.getName(), graph);
+		}
+		return graph;
+	}
+
+	/**
+	 * Returns an estimate of the heap used by the build state of all Kotlin projects in bytes.
+	 */
+	public synchronized long estimateSize() {
+		long bytes = 0;
+
+		for (SourceMappingStore store : stores.values()) {
+			bytes += store.estimateSize();
+		}
+
+		for (DependencyGraph graph : graphs.values()) {
+			bytes += graph.estimateSize();
+		}
+		return bytes;
+	}
+
+	@Override
+	public void prepareToSave(ISaveContext context) throws CoreException {
+	}
+
+	@Override
+	public synchronized void saving(ISaveContext context) throws CoreException {
+		if (context.getKind() == ISaveContext.PROJECT_SAVE) {
+			save(context.getProject().getName());
+			return;
+		}
+
+		Set<String> projectNames = new HashSet<String>(stores.keySet());
+		projectNames.addAll(graphs.keySet());
+
+		for (String projectName : projectNames) {
+			save(projectName);
+		}
+
+		if (context.getKind() == ISaveContext.FULL_SAVE) {
+			deleteRemovedProjects();
+		}
+	}
+
+	@Override
+	public void doneSaving(ISaveContext context) {
+	}
+
+	@Override
+	public void rollback(ISaveContext context) {
+	}
+
+	private void save(String projectName) throws CoreException {
+		SourceMappingStore store = stores.get(projectName);
+		DependencyGraph graph = graphs.get(projectName);
+
+		try {
+			if (store != null && store.isDirty()) {
+				store.save(getFile(projectName, MAPPING_EXT));
+			}
+
+			if (graph != null && graph.isDirty()) {
+				graph.save(getFile(projectName, DEPENDENCIES_EXT));
+			}
+		} catch (IOException e) {
+			throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+					"Failed to save the Kotlin build state of " + projectName, e));
+		}
+	}
+
+	private void deleteRemovedProjects() {
+		File[] files = Activator.getDefault().getStateLocation().toFile().listFiles();
+
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			String name = file.getName();
+			String projectName;
+
+			if (name.endsWith(MAPPING_EXT)) {
+				projectName = name.substring(0, name.length() - MAPPING_EXT.length());
+			} else if (name.endsWith(DEPENDENCIES_EXT)) {
+				projectName = name.substring(0, name.length() - DEPENDENCIES_EXT.length());
+			} else {
+				continue;
+			}
+
+			if (!ResourcesPlugin.getWorkspace().getRoot().getProject(projectName).exists()) {
+				stores.remove(projectName);
+				graphs.remove(projectName);
+				file.delete();
+			}
+		}
+	}
+
+	private static File getFile(String projectName, String extension) {
+		return Activator.getDefault().getStateLocation().append(projectName + extension).toFile();
+	}
+
+	private static void log(String message, Throwable e) {
+		Activator.getDefault().getLog().log(new Status(IStatus.WARNING, Activator.PLUGIN_ID, message, e));
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The class files generated for each Kotlin source file of a project.
+ *
+ * The mapping is stored in the state location of the plug-in so classes of removed
+ * sources can still be deleted after a restart. The file starts with a table of all
+ * distinct paths, the entries refer to the paths by their index in the table.
+ *
+ * In memory the sources and outputs are interned in a {@link PathTable} each and the
+ * outputs of a source are an int array, indexed by the id of the source. The sources
+ * of each output are kept the same way, because an output like a package facade can be
+ * generated from several sources. Paths which are no longer used are dropped when the
+ * tables are more than half unused.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class SourceMappingStore {
+
+	private static final int MAGIC = 0x4B544D50; // KTMP
+
+	private static final int VERSION = 1;
+
+	private static final int[] NO_OUTPUTS = new int[0];
+
+	private PathTable sources = new PathTable();
+
+	private PathTable outputs = new PathTable();
+
+	/**
+	 * The output ids by source id, null for a source without entry.
+	 */
+	private int[][] mapping = new int[16][];
+
+	/**
+	 * The source ids by output id, null for an output without sources.
+	 */
+	private int[][] contributors = new int[16][];
+
+	private int sourceCount = 0;
+
+	private int outputCount = 0;
+
+	private boolean dirty = false;
+
+	/**
+	 * Returns the outputs of a source, or an empty list if there are none.
+	 */
+	public synchronized List<String> get(String source) {
+		int id = sources.indexOf(source);
+
+		if (id == -1 || mapping[id] == null) {
+			return Collections.emptyList();
+		}
+		return toPaths(mapping[id]);
+	}
+
+	/**
+	 * Returns the sources an output is generated from, or an empty list if there are none.
+	 */
+	public synchronized List<String> getSources(String output) {
+		int outputId = outputs.indexOf(output);
+
+		if (outputId == -1 || contributors[outputId] == null) {
+			return Collections.emptyList();
+		}
+
+		List<String> paths = new ArrayList<String>(contributors[outputId].length);
+
+		for (int id : contributors[outputId]) {
+			paths.add(sources.get(id));
+		}
+		return paths;
+	}
+
+	public synchronized void add(String source, String output) {
+		int id = sources.add(source);
+		int outputId = outputs.add(output);
+
+		if (id >= mapping.length) {
+			mapping = Arrays.copyOf(mapping, Math.max(id + 1, mapping.length * 2));
+		}
+
+		int[] outputIds = mapping[id];
+
+		if (outputIds == null) {
+			outputIds = NO_OUTPUTS;
+			sourceCount++;
+		}
+
+		for (int existing : outputIds) {
+			if (existing == outputId) {
+				mapping[id] = outputIds;
+				return;
+			}
+		}
+
+		mapping[id] = append(outputIds, outputId);
+
+		if (outputId >= contributors.length) {
+			contributors = Arrays.copyOf(contributors, Math.max(outputId + 1, contributors.length * 2));
+		}
+
+		contributors[outputId] = append(contributors[outputId] != null ? contributors[outputId] : NO_OUTPUTS, id);
+		outputCount++;
+		dirty = true;
+	}
+
+	/**
+	 * Adds an output generated from the source files, as reported by the compiler.
+	 */
+	public void add(Collection<File> sourceFiles, File outputFile) {
+		String output = outputFile.getAbsolutePath().replace(File.separatorChar, '/');
+
+		for (File sourceFile : sourceFiles) {
+			add(sourceFile.getAbsolutePath().replace(File.separatorChar, '/'), output);
+		}
+	}
+
+	/**
+	 * Removes a source and returns the outputs only it generated, so they can be deleted.
+	 * The other sources of the outputs it shared are added to the contributors.
+	 */
+	public synchronized List<String> removeSource(String source, Collection<String> contributors) {
+		List<String> removed = remove(source);
+		List<String> exclusive = new ArrayList<String>(removed.size());
+
+		for (String output : removed) {
+			List<String> others = getSources(output);
+
+			if (others.isEmpty()) {
+				exclusive.add(output);
+			} else {
+				contributors.addAll(others);
+			}
+		}
+		return exclusive;
+	}
+
+	/**
+	 * Removes a source and returns the outputs it had.
+	 */
+	public synchronized List<String> remove(String source) {
+		int id = sources.indexOf(source);
+
+		if (id == -1 || mapping[id] == null) {
+			return Collections.emptyList();
+		}
+
+		List<String> removed = toPaths(mapping[id]);
+
+		for (int outputId : mapping[id]) {
+			contributors[outputId] = remove(contributors[outputId], id);
+		}
+
+		mapping[id] = null;
+		sourceCount--;
+		outputCount -= removed.size();
+		dirty = true;
+
+		if (sources.size() > 2 * sourceCount + 64 || outputs.size() > 2 * outputCount + 64) {
+			compact();
+		}
+		return removed;
+	}
+
+	public synchronized void clear() {
+		if (sourceCount > 0) {
+			reset();
+			dirty = true;
+		}
+	}
+
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Returns an estimate of the heap used by the mapping in bytes.
+	 */
+	public synchronized long estimateSize() {
+		long bytes = sources.estimateSize() + outputs.estimateSize() + 16 + 4L * mapping.length;
+
+		for (int id = 0; id < sources.size(); id++) {
+			if (mapping[id] != null) {
+				bytes += 16 + 4L * mapping[id].length;
+			}
+		}
+
+		bytes += 16 + 4L * contributors.length;
+
+		for (int outputId = 0; outputId < outputs.size(); outputId++) {
+			if (contributors[outputId] != null) {
+				bytes += 16 + 4L * contributors[outputId].length;
+			}
+		}
+		return bytes;
+	}
+
+	public synchronized void load(File file) throws IOException {
+		reset();
+		dirty = false;
+
+		if (!file.exists()) {
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				// Unknown format, start over.
+				return;
+			}
+
+			String[] paths = new String[in.readInt()];
+			for (int i = 0; i < paths.length; i++) {
+				paths[i] = in.readUTF();
+			}
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String source = paths[in.readInt()];
+				int outputCount = in.readInt();
+
+				for (int o = 0; o < outputCount; o++) {
+					add(source, paths[in.readInt()]);
+				}
+			}
+		} finally {
+			in.close();
+			dirty = false;
+		}
+	}
+
+	public synchronized void save(File file) throws IOException {
+		// The file has one table for sources and outputs, the outputs follow the sources.
+		int outputOffset = sources.size();
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(sources.size() + outputs.size());
+			for (int id = 0; id < sources.size(); id++) {
+				out.writeUTF(sources.get(id));
+			}
+			for (int id = 0; id < outputs.size(); id++) {
+				out.writeUTF(outputs.get(id));
+			}
+
+			out.writeInt(sourceCount);
+			for (int id = 0; id < sources.size(); id++) {
+				int[] outputIds = mapping[id];
+
+				if (outputIds != null) {
+					out.writeInt(id);
+					out.writeInt(outputIds.length);
+					for (int outputId : outputIds) {
+						out.writeInt(outputOffset + outputId);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Failed to replace " + file);
+		}
+
+		if (!tempFile.renameTo(file)) {
+			throw new IOException("Failed to write " + file);
+		}
+		dirty = false;
+	}
+
+	private List<String> toPaths(int[] outputIds) {
+		List<String> paths = new ArrayList<String>(outputIds.length);
+
+		for (int outputId : outputIds) {
+			paths.add(outputs.get(outputId));
+		}
+		return paths;
+	}
+
+	private static int[] append(int[] ids, int id) {
+		int[] result = Arrays.copyOf(ids, ids.length + 1);
+		result[ids.length] = id;
+		return result;
+	}
+
+	/**
+	 * Returns the ids without the given id, or null if no ids remain.
+	 */
+	private static int[] remove(int[] ids, int id) {
+		if (ids == null || ids.length == 1 && ids[0] == id) {
+			return null;
+		}
+
+		int[] result = new int[ids.length - 1];
+		int i = 0;
+
+		for (int existing : ids) {
+			if (existing != id && i < result.length) {
+				result[i++] = existing;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Replaces the tables by tables holding only the paths still in use.
+	 */
+	private void compact() {
+		PathTable oldSources = sources;
+		PathTable oldOutputs = outputs;
+		int[][] oldMapping = mapping;
+		reset();
+
+		for (int id = 0; id < oldSources.size(); id++) {
+			if (oldMapping[id] != null) {
+				for (int outputId : oldMapping[id]) {
+					add(oldSources.get(id), oldOutputs.get(outputId));
+				}
+			}
+		}
+	}
+
+	private void reset() {
+		sources = new PathTable();
+		outputs = new PathTable();
+		mapping = new int[16][];
+		contributors = new int[16][];
+		sourceCount = 0;
+		outputCount = 0;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the sources of a compilation in chunks that don't depend on each other, so
+ * the chunks can be compiled at the same time.
+ *
+ * Two sources are in the same chunk when one refers to a class generated by the other
+ * or when they generate a class together, like a package facade. The connected groups
+ * of sources are packed in chunks of about the same size. Sources depending on each
+ * other in a cycle always end up in one group. The references come from the previous
+ * build, so when a source has no known references, like a new source, all sources are
+ * compiled as one chunk.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class SourcePartitioner {
+
+	/**
+	 * The fewest sources worth a chunk of their own, below this a compiler environment costs more than it saves.
+	 */
+	private static final int MIN_CHUNK_SOURCES = 50;
+
+	private static final String CLASS_EXT = ".class";
+
+	private SourcePartitioner() {
+	}
+
+	/**
+	 * Returns the chunks of the sources.
+	 *
+	 * @param sourcePaths the paths of the sources to compile.
+	 * @param references the classes each source referred to in the previous build.
+	 * @param mapping the classes generated by each source in the previous build.
+	 * @param outputDir the output folder, the classes are looked up in the mapping by their path in it.
+	 * @param maxChunks the maximum number of chunks.
+	 */
+	public static List<List<String>> partition(List<String> sourcePaths, Map<String, Set<String>> references,
+			SourceMappingStore mapping, String outputDir, int maxChunks) {
+		int chunkCount = Math.min(maxChunks, sourcePaths.size() / MIN_CHUNK_SOURCES);
+
+		if (chunkCount < 2 || !references.keySet().containsAll(sourcePaths)) {
+			return Collections.singletonList(sourcePaths);
+		}
+
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+
+		for (String sourcePath : sourcePaths) {
+			ids.put(sourcePath, ids.size());
+		}
+
+		int[] parents = new int[sourcePaths.size()];
+
+		for (int id = 0; id < parents.length; id++) {
+			parents[id] = id;
+		}
+
+		for (int id = 0; id < parents.length; id++) {
+			String sourcePath = sourcePaths.get(id);
+
+			for (String className : references.get(sourcePath)) {
+				join(parents, id, mapping.getSources(outputDir + "/" + className + CLASS_EXT), ids);
+			}
+
+			for (String output : mapping.get(sourcePath)) {
+				join(parents, id, mapping.getSources(output), ids);
+			}
+		}
+
+		Map<Integer, List<String>> groups = new LinkedHashMap<Integer, List<String>>();
+
+		for (int id = 0; id < parents.length; id++) {
+			int root = find(parents, id);
+			List<String> group = groups.get(root);
+
+			if (group == null) {
+				group = new ArrayList<String>();
+				groups.put(root, group);
+			}
+			group.add(sourcePaths.get(id));
+		}
+
+		if (groups.size() < 2) {
+			return Collections.singletonList(sourcePaths);
+		}
+
+		return pack(new ArrayList<List<String>>(groups.values()), chunkCount);
+	}
+
+	/**
+	 * Adds the largest groups first, each to the smallest chunk so far.
+	 */
+	private static List<List<String>> pack(List<List<String>> groups, int chunkCount) {
+		Collections.sort(groups, new Comparator<List<String>>() {
+			@Override
+			public int compare(List<String> g1, List<String> g2) {
+				return g2.size() - g1.size();
+			}
+		});
+
+		List<List<String>> chunks = new ArrayList<List<String>>(chunkCount);
+
+		for (int i = 0; i < Math.min(chunkCount, groups.size()); i++) {
+			chunks.add(new ArrayList<String>());
+		}
+
+		for (List<String> group : groups) {
+			List<String> smallest = chunks.get(0);
+
+			for (List<String> chunk : chunks) {
+				if (chunk.size() < smallest.size()) {
+					smallest = chunk;
+				}
+			}
+			smallest.addAll(group);
+		}
+		return chunks;
+	}
+
+	private static void join(int[] parents, int id, List<String> others, Map<String, Integer> ids) {
+		for (String other : others) {
+			Integer otherId = ids.get(other);
+
+			if (otherId != null) {
+				parents[find(parents, otherId)] = find(parents, id);
+			}
+		}
+	}
+
+	private static int find(int[] parents, int id) {
+		while (parents[id] != id) {
+			parents[id] = parents[parents[id]];
+			id = parents[id];
+		}
+		return id;
+	}
+}
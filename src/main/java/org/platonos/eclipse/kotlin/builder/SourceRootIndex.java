@@ -0,0 +1,182 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.builder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.compiler.CharOperation;
+
+/**
+ * An immutable trie of the source folders of a project, one node per path segment.
+ *
+ * Finding the source folder of a path walks the segments of the path, so it takes
+ * one map lookup per segment. The inclusion and exclusion patterns of the source
+ * folder are applied the same way JDT applies them.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class SourceRootIndex {
+
+	private static final String KOTLIN_EXT = "kt"; //$NON-NLS-1$
+
+	private final Node root = new Node();
+
+	private final List<IPath> sourceRoots = new ArrayList<IPath>();
+
+	public SourceRootIndex(IClasspathEntry[] rawClasspath) {
+		for (IClasspathEntry entry : rawClasspath) {
+			if (entry.getEntryKind() == IClasspathEntry.CPE_SOURCE) {
+				add(entry);
+			}
+		}
+
+		for (IClasspathEntry entry : rawClasspath) {
+			if (entry.getEntryKind() == IClasspathEntry.CPE_SOURCE && !isNested(entry.getPath())) {
+				sourceRoots.add(entry.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Returns the workspace paths of the source folders, without the folders nested in another source folder.
+	 */
+	public List<IPath> getSourceRoots() {
+		return Collections.unmodifiableList(sourceRoots);
+	}
+
+	private boolean isNested(IPath path) {
+		Node node = root;
+
+		for (int i = 0; i < path.segmentCount() - 1; i++) {
+			node = node.children.get(path.segment(i));
+
+			if (node.sourceRoot) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void add(IClasspathEntry entry) {
+		IPath path = entry.getPath();
+		Node node = root;
+
+		for (int i = 0; i < path.segmentCount(); i++) {
+			String segment = path.segment(i);
+			Node child = node.children.get(segment);
+
+			if (child == null) {
+				child = new Node();
+				node.children.put(segment, child);
+			}
+			node = child;
+		}
+
+		node.sourceRoot = true;
+		node.inclusionPatterns = toPatterns(entry.getInclusionPatterns());
+		node.exclusionPatterns = toPatterns(entry.getExclusionPatterns());
+	}
+
+	/**
+	 * Returns true if the resource is a Kotlin file in a source folder.
+	 */
+	public boolean isKotlinSource(IResource resource) {
+		return resource instanceof IFile && KOTLIN_EXT.equals(resource.getFileExtension()) && isSource(resource.getFullPath());
+	}
+
+	/**
+	 * Returns true if the workspace path is in a source folder and not excluded from it.
+	 */
+	public boolean isSource(IPath fullPath) {
+		Node node = root;
+		Node sourceRoot = null;
+		int sourceRootDepth = 0;
+		int segmentCount = fullPath.segmentCount();
+
+		for (int i = 0; i < segmentCount && node != null; i++) {
+			node = node.children.get(fullPath.segment(i));
+
+			if (node != null && node.sourceRoot) {
+				sourceRoot = node;
+				sourceRootDepth = i + 1;
+			}
+		}
+
+		if (sourceRoot == null) {
+			return false;
+		}
+
+		if (sourceRoot.inclusionPatterns == null && sourceRoot.exclusionPatterns == null) {
+			return true;
+		}
+
+		char[] relativePath = fullPath.removeFirstSegments(sourceRootDepth).toString().toCharArray();
+		return !isExcluded(relativePath, sourceRoot.inclusionPatterns, sourceRoot.exclusionPatterns);
+	}
+
+	private static boolean isExcluded(char[] path, char[][] inclusionPatterns, char[][] exclusionPatterns) {
+		if (inclusionPatterns != null) {
+			boolean included = false;
+
+			for (char[] pattern : inclusionPatterns) {
+				if (CharOperation.pathMatch(pattern, path, true, '/')) {
+					included = true;
+					break;
+				}
+			}
+
+			if (!included) {
+				return true;
+			}
+		}
+
+		if (exclusionPatterns != null) {
+			for (char[] pattern : exclusionPatterns) {
+				if (CharOperation.pathMatch(pattern, path, true, '/')) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static char[][] toPatterns(IPath[] paths) {
+		if (paths == null || paths.length == 0) {
+			return null;
+		}
+
+		char[][] patterns = new char[paths.length][];
+		for (int i = 0; i < paths.length; i++) {
+			patterns[i] = paths[i].toString().toCharArray();
+		}
+		return patterns;
+	}
+
+	private static class Node {
+		private final Map<String, Node> children = new HashMap<String, Node>(4);
+		private boolean sourceRoot = false;
+		private char[][] inclusionPatterns;
+		private char[][] exclusionPatterns;
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.eclipse.core.runtime.FileLocator;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageLocation;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageSeverity;
+import org.jetbrains.jet.cli.common.messages.MessageCollector;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.platonos.eclipse.kotlin.Activator;
+import org.platonos.eclipse.kotlin.KotlinPreferences;
+import org.platonos.eclipse.kotlin.builder.CompilationProgress;
+
+/**
+ * The connection to one compile daemon, a separate JVM with its own heap which runs the Kotlin compiler.
+ *
+ * The daemon is started on the first compile, checked with a ping before every compile
+ * and restarted when it doesn't answer.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+class DaemonConnection {
+
+	private static final int PING_TIMEOUT = 5000;
+
+	private static final int START_ATTEMPTS = 2;
+
+	private static final int CANCEL_POLL_INTERVAL = 200;
+
+	/**
+	 * The token every connection to the daemon starts with.
+	 */
+	private final String token;
+
+	private Process process;
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	DaemonConnection(String token) {
+		this.token = token;
+	}
+
+	/**
+	 * Compiles the sources in the daemon. All messages reported by the daemon are passed
+	 * to the message collector.
+	 *
+	 * @return true if the compilation succeeded.
+	 * @throws IOException if the daemon couldn't be started or died during the compilation.
+	 * @throws CancellationException if the progress was canceled, the daemon is stopped then.
+	 */
+	boolean compile(String projectName, String stdlib, String[] sources, String[] classpath,
+			File outputDir, MessageCollector messageCollector, CompilationProgress progress) throws IOException {
+		ensureRunning();
+
+		try {
+			out.writeByte(DaemonProtocol.COMPILE);
+			DaemonProtocol.writeString(out, projectName);
+			DaemonProtocol.writeString(out, stdlib);
+			DaemonProtocol.writeStrings(out, sources);
+			DaemonProtocol.writeStrings(out, classpath);
+			DaemonProtocol.writeString(out, outputDir.getAbsolutePath());
+			out.flush();
+			return readResult(messageCollector, progress);
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Analyzes the sources in the daemon without generating classes. All messages reported
+	 * by the daemon are passed to the message collector.
+	 *
+	 * @return true if none of the sources has errors.
+	 * @throws IOException if the daemon couldn't be started or died during the analysis.
+	 * @throws CancellationException if the progress was canceled, the daemon is stopped then.
+	 */
+	boolean analyze(String projectName, String stdlib, String[] sources, String[] classpath,
+			MessageCollector messageCollector, CompilationProgress progress) throws IOException {
+		ensureRunning();
+
+		try {
+			out.writeByte(DaemonProtocol.ANALYZE);
+			DaemonProtocol.writeString(out, projectName);
+			DaemonProtocol.writeString(out, stdlib);
+			DaemonProtocol.writeStrings(out, sources);
+			DaemonProtocol.writeStrings(out, classpath);
+			out.flush();
+			return readResult(messageCollector, progress);
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the messages and phases of a request up to its result.
+	 */
+	private boolean readResult(MessageCollector messageCollector, CompilationProgress progress) throws IOException {
+		while (true) {
+			int response = readResponse(progress);
+
+			if (response == DaemonProtocol.PHASE) {
+				progress.beginPhase(DaemonProtocol.readString(in));
+			} else if (response == DaemonProtocol.DONE) {
+				return in.readBoolean();
+			} else if (response == DaemonProtocol.MESSAGE) {
+				CompilerMessageSeverity severity = CompilerMessageSeverity.valueOf(DaemonProtocol.readString(in));
+				String message = DaemonProtocol.readString(in);
+				String path = DaemonProtocol.readString(in);
+				int line = in.readInt();
+				int column = in.readInt();
+				messageCollector.report(severity, message, CompilerMessageLocation.create(path, line, column));
+			} else {
+				throw new IOException("Unexpected response " + response);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the next response, checking the progress for cancellation while waiting.
+	 * The rest of the response is read without a timeout so it is never partially consumed.
+	 */
+	private int readResponse(CompilationProgress progress) throws IOException {
+		socket.setSoTimeout(CANCEL_POLL_INTERVAL);
+
+		try {
+			while (true) {
+				if (progress.isCanceled()) {
+					stop();
+					throw new CancellationException();
+				}
+
+				try {
+					int response = in.read();
+
+					if (response == -1) {
+						throw new EOFException("Kotlin compile daemon closed the connection");
+					}
+					return response;
+				} catch (SocketTimeoutException e) {
+					// check for cancellation again
+				}
+			}
+		} finally {
+			if (socket != null) {
+				socket.setSoTimeout(0);
+			}
+		}
+	}
+
+	void shutdown() {
+		if (out != null) {
+			try {
+				out.writeByte(DaemonProtocol.SHUTDOWN);
+				out.flush();
+			} catch (IOException e) {
+			}
+		}
+		stop();
+	}
+
+	private void ensureRunning() throws IOException {
+		if (isAlive()) {
+			return;
+		}
+
+		stop();
+
+		IOException failure = null;
+
+		for (int attempt = 0; attempt < START_ATTEMPTS; attempt++) {
+			try {
+				start();
+				return;
+			} catch (IOException e) {
+				stop();
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	private boolean isAlive() {
+		if (process == null || socket == null) {
+			return false;
+		}
+
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			// still running
+		}
+
+		try {
+			socket.setSoTimeout(PING_TIMEOUT);
+			out.writeByte(DaemonProtocol.PING);
+			out.flush();
+			return in.readByte() == DaemonProtocol.PONG;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void start() throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+		command.add("-Xmx" + KotlinPreferences.getCompileDaemonHeapSize());
+		command.add("-cp");
+		command.add(createClasspath());
+		command.add(KotlinCompileDaemon.class.getName());
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		process = builder.start();
+
+		// The standard input stays open, the daemon exits when it is closed.
+		OutputStream stdin = process.getOutputStream();
+		stdin.write((token + "\n").getBytes("UTF-8"));
+		stdin.flush();
+
+		int port = readPort(process);
+		socket = new Socket(InetAddress.getByName(null), port);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		DaemonProtocol.writeString(out, token);
+		out.flush();
+	}
+
+	private static int readPort(final Process process) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith(DaemonProtocol.PORT_PREFIX)) {
+				int port = Integer.parseInt(line.substring(DaemonProtocol.PORT_PREFIX.length()).trim());
+				drain(reader);
+				return port;
+			}
+		}
+		throw new IOException("Kotlin compile daemon exited before it was started");
+	}
+
+	/**
+	 * Keeps reading the output of the daemon so it never blocks on a full pipe.
+	 */
+	private static void drain(final BufferedReader reader) {
+		Thread thread = new Thread("Kotlin daemon output") {
+			@Override
+			public void run() {
+				try {
+					while (reader.readLine() != null) {
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void stop() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+
+		if (process != null) {
+			process.destroy();
+		}
+
+		socket = null;
+		in = null;
+		out = null;
+		process = null;
+	}
+
+	/**
+	 * Builds the classpath of the daemon from the Bundle-ClassPath of this plug-in.
+	 */
+	private static String createClasspath() throws IOException {
+		Bundle bundle = Activator.getDefault().getBundle();
+		String bundleClassPath = (String) bundle.getHeaders().get(Constants.BUNDLE_CLASSPATH);
+		StringBuilder classpath = new StringBuilder();
+
+		for (String entry : bundleClassPath.split(",")) {
+			entry = entry.trim();
+			File file;
+
+			if (".".equals(entry)) {
+				file = FileLocator.getBundleFile(bundle);
+
+				// When running from the workspace the classes are in the output folder.
+				File bin = new File(file, "bin");
+				if (file.isDirectory() && bin.isDirectory()) {
+					file = bin;
+				}
+			} else {
+				URL url = bundle.getEntry(entry);
+				if (url == null) {
+					continue;
+				}
+				file = new File(FileLocator.toFileURL(url).getPath());
+			}
+
+			if (classpath.length() > 0) {
+				classpath.append(File.pathSeparatorChar);
+			}
+			classpath.append(file.getAbsolutePath());
+		}
+		return classpath.toString();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * The wire format spoken between {@link KotlinDaemonClient} and {@link KotlinCompileDaemon}.
+ *
+ * The client passes a random token to the daemon on its standard input when it starts
+ * it. Every connection starts with that token, the daemon closes connections that don't,
+ * so other local processes can't use the daemon. After the token every request starts
+ * with a request byte. A compile request is followed by the
+ * project name, stdlib, sources, classpath and output directory, an analyze request by the
+ * same without the output directory. The daemon answers both with zero or more
+ * {@link #MESSAGE} and {@link #PHASE} records followed by one {@link #DONE} record.
+ * Strings are written as length prefixed UTF-8 so messages aren't limited to 64K.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+final class DaemonProtocol {
+
+	static final byte PING = 1;
+	static final byte COMPILE = 2;
+	static final byte SHUTDOWN = 3;
+	static final byte ANALYZE = 4;
+
+	static final byte PONG = 10;
+	static final byte MESSAGE = 11;
+	static final byte DONE = 12;
+	static final byte PHASE = 13;
+
+	/**
+	 * First line the daemon prints on its standard output, followed by the port it listens on.
+	 */
+	static final String PORT_PREFIX = "KOTLIN_DAEMON_PORT ";
+
+	private static final String UTF_8 = "UTF-8";
+
+	private DaemonProtocol() {
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Reads the token a connection starts with. Only a string of the length of the
+	 * token is read, so a connection can't make the daemon allocate a large buffer.
+	 *
+	 * @return true if the connection sent the token.
+	 */
+	static boolean readToken(DataInputStream in, String token) throws IOException {
+		byte[] expected = token.getBytes(UTF_8);
+
+		if (in.readInt() != expected.length) {
+			return false;
+		}
+
+		byte[] received = new byte[expected.length];
+		in.readFully(received);
+		return MessageDigest.isEqual(expected, received);
+	}
+
+	static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(values.length);
+			for (String value : values) {
+				writeString(out, value);
+			}
+		}
+	}
+
+	static String[] readStrings(DataInputStream in) throws IOException {
+		int length = in.readInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		String[] values = new String[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = readString(in);
+		}
+		return values;
+	}
+}
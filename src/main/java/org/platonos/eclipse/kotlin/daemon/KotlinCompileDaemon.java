@@ -0,0 +1,235 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageLocation;
+import org.jetbrains.jet.cli.common.messages.CompilerMessageSeverity;
+import org.jetbrains.jet.cli.common.messages.MessageCollector;
+import org.platonos.eclipse.kotlin.builder.CompilationProgress;
+import org.platonos.eclipse.kotlin.builder.KotlinJvmCompilation;
+
+/**
+ * Entry point of the out of process compiler.
+ *
+ * The daemon reads the token of its client from the first line of its standard input,
+ * listens on a loopback port which it prints on its standard output and handles the
+ * requests of one connection at a time. Connections which don't start with the token
+ * are closed. It stops when it receives a shutdown request or when its standard input
+ * is closed, which happens when the IDE exits.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class KotlinCompileDaemon {
+
+	/**
+	 * The milliseconds a new connection gets to send the token.
+	 */
+	private static final int TOKEN_TIMEOUT = 5000;
+
+	public static void main(String[] args) throws IOException {
+		String token = readToken();
+
+		if (token == null || token.length() == 0) {
+			System.exit(1);
+		}
+
+		ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName(null));
+		watchParent();
+
+		System.out.println(DaemonProtocol.PORT_PREFIX + serverSocket.getLocalPort());
+		System.out.flush();
+
+		boolean running = true;
+
+		while (running) {
+			Socket socket = serverSocket.accept();
+			try {
+				running = handle(socket, token);
+			} catch (IOException e) {
+				// The client went away, wait for the next one.
+			} finally {
+				socket.close();
+			}
+		}
+		serverSocket.close();
+		System.exit(0);
+	}
+
+	private static boolean handle(Socket socket, String token) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		socket.setSoTimeout(TOKEN_TIMEOUT);
+
+		if (!DaemonProtocol.readToken(in, token)) {
+			return true;
+		}
+		socket.setSoTimeout(0);
+
+		while (true) {
+			int request = in.read();
+
+			switch (request) {
+			case -1:
+				return true;
+			case DaemonProtocol.PING:
+				out.writeByte(DaemonProtocol.PONG);
+				out.flush();
+				break;
+			case DaemonProtocol.SHUTDOWN:
+				return false;
+			case DaemonProtocol.COMPILE:
+				compile(in, out);
+				break;
+			case DaemonProtocol.ANALYZE:
+				analyze(in, out);
+				break;
+			default:
+				throw new IOException("Unknown request " + request);
+			}
+		}
+	}
+
+	private static void compile(DataInputStream in, final DataOutputStream out) throws IOException {
+		String projectName = DaemonProtocol.readString(in);
+		String stdlib = DaemonProtocol.readString(in);
+		String[] sources = DaemonProtocol.readStrings(in);
+		String[] classpath = DaemonProtocol.readStrings(in);
+		String outputDir = DaemonProtocol.readString(in);
+
+		StreamingMessageCollector messageCollector = new StreamingMessageCollector(out);
+		KotlinJvmCompilation compilation = new KotlinJvmCompilation(projectName, stdlib, sources, classpath, new File(outputDir), messageCollector);
+		compilation.setProgress(messageCollector);
+		done(out, messageCollector, compilation.run());
+	}
+
+	private static void analyze(DataInputStream in, final DataOutputStream out) throws IOException {
+		String projectName = DaemonProtocol.readString(in);
+		String stdlib = DaemonProtocol.readString(in);
+		String[] sources = DaemonProtocol.readStrings(in);
+		String[] classpath = DaemonProtocol.readStrings(in);
+
+		StreamingMessageCollector messageCollector = new StreamingMessageCollector(out);
+		KotlinJvmCompilation compilation = new KotlinJvmCompilation(projectName, stdlib, sources, classpath, null, messageCollector);
+		compilation.setProgress(messageCollector);
+		done(out, messageCollector, compilation.analyze());
+	}
+
+	private static void done(DataOutputStream out, StreamingMessageCollector messageCollector, boolean success) throws IOException {
+		if (messageCollector.error != null) {
+			throw messageCollector.error;
+		}
+
+		out.writeByte(DaemonProtocol.DONE);
+		out.writeBoolean(success);
+		out.flush();
+	}
+
+	/**
+	 * Reads the first line of the standard input, the rest is read by {@link #watchParent()}.
+	 *
+	 * @return the token, or null if the input was closed first.
+	 */
+	private static String readToken() throws IOException {
+		StringBuilder token = new StringBuilder();
+		int c;
+
+		while ((c = System.in.read()) != -1 && c != '\n') {
+			token.append((char) c);
+		}
+		return c == -1 ? null : token.toString().trim();
+	}
+
+	private static void watchParent() {
+		Thread thread = new Thread("Kotlin daemon parent watcher") {
+			@Override
+			public void run() {
+				try {
+					while (System.in.read() != -1) {
+					}
+				} catch (IOException e) {
+				}
+				System.exit(0);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Writes every compiler message, including the OUTPUT messages, and the phases back to the client.
+	 * The daemon is never canceled, the client stops the daemon instead.
+	 */
+	private static class StreamingMessageCollector implements MessageCollector, CompilationProgress {
+
+		private final DataOutputStream out;
+		private IOException error;
+
+		StreamingMessageCollector(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void report(@NotNull CompilerMessageSeverity severity,
+				@NotNull String message, @NotNull CompilerMessageLocation location) {
+			if (error != null) {
+				return;
+			}
+
+			try {
+				out.writeByte(DaemonProtocol.MESSAGE);
+				DaemonProtocol.writeString(out, severity.name());
+				DaemonProtocol.writeString(out, message);
+				DaemonProtocol.writeString(out, location.getPath());
+				out.writeInt(location.getLine());
+				out.writeInt(location.getColumn());
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+
+		@Override
+		public void beginPhase(String name) {
+			if (error != null) {
+				return;
+			}
+
+			try {
+				out.writeByte(DaemonProtocol.PHASE);
+				DaemonProtocol.writeString(out, name);
+				out.flush();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright [2013] [Platonos]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.platonos.eclipse.kotlin.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.jetbrains.jet.cli.common.messages.MessageCollector;
+import org.platonos.eclipse.kotlin.KotlinPreferences;
+import org.platonos.eclipse.kotlin.builder.CompilationProgress;
+
+/**
+ * Runs compilations in compile daemons shared by all Kotlin projects in the workspace.
+ *
+ * A daemon compiles one request at a time. When projects are built in parallel, or
+ * the parts of a project are compiled in parallel, each compilation gets a daemon of its own, up to the configured maximum. Daemons are
+ * started when needed and kept for the next compilation. The daemons only accept
+ * connections which start with a random token the client creates and passes to them.
+ *
+ * @author Evert Tigchelaar (everttigchelaar@gmail.com)
+ */
+public class KotlinDaemonClient {
+
+	private static final int TOKEN_BITS = 128;
+
+	private static final KotlinDaemonClient INSTANCE = new KotlinDaemonClient();
+
+	private final String token = new BigInteger(TOKEN_BITS, new SecureRandom()).toString(16);
+
+	private final LinkedList<DaemonConnection> idle = new LinkedList<DaemonConnection>();
+
+	private final List<DaemonConnection> all = new ArrayList<DaemonConnection>();
+
+	public static KotlinDaemonClient getDefault() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Compiles the sources in a daemon. All messages reported by the daemon are passed
+	 * to the message collector. Blocks while all daemons are busy.
+	 *
+	 * @return true if the compilation succeeded.
+	 * @throws IOException if the daemon couldn't be started or died during the compilation.
+	 * @throws java.util.concurrent.CancellationException if the progress was canceled.
+	 */
+	public boolean compile(String projectName, String stdlib, String[] sources, String[] classpath,
+			File outputDir, MessageCollector messageCollector, CompilationProgress progress) throws IOException {
+		DaemonConnection connection = acquire();
+
+		try {
+			return connection.compile(projectName, stdlib, sources, classpath, outputDir, messageCollector, progress);
+		} finally {
+			release(connection);
+		}
+	}
+
+	/**
+	 * Analyzes the sources in a daemon without generating classes. All messages reported
+	 * by the daemon are passed to the message collector. Blocks while all daemons are busy.
+	 *
+	 * @return true if none of the sources has errors.
+	 * @throws IOException if the daemon couldn't be started or died during the analysis.
+	 * @throws java.util.concurrent.CancellationException if the progress was canceled.
+	 */
+	public boolean analyze(String projectName, String stdlib, String[] sources, String[] classpath,
+			MessageCollector messageCollector, CompilationProgress progress) throws IOException {
+		DaemonConnection connection = acquire();
+
+		try {
+			return connection.analyze(projectName, stdlib, sources, classpath, messageCollector, progress);
+		} finally {
+			release(connection);
+		}
+	}
+
+	public synchronized void shutdown() {
+		for (DaemonConnection connection : all) {
+			connection.shutdown();
+		}
+		all.clear();
+		idle.clear();
+		notifyAll();
+	}
+
+	private synchronized DaemonConnection acquire() throws IOException {
+		while (idle.isEmpty()) {
+			if (all.size() < getMaxDaemons()) {
+				DaemonConnection connection = new DaemonConnection(token);
+				all.add(connection);
+				return connection;
+			}
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a Kotlin compile daemon");
+			}
+		}
+		return idle.removeFirst();
+	}
+
+	private synchronized void release(DaemonConnection connection) {
+		if (all.contains(connection)) {
+			idle.addFirst(connection);
+			notifyAll();
+		}
+	}
+
+	private static int getMaxDaemons() {
+		if (KotlinPreferences.isParallelBuildEnabled() || KotlinPreferences.isParallelCompileEnabled()) {
+			return KotlinPreferences.getParallelBuildThreads();
+		}
+		return 1;
+	}
+}